@@ -288,6 +288,8 @@ public class ActivityView extends ActivityBase implements FragmentManager.OnBack
                             draft.account = drafts.account;
                             draft.folder = drafts.id;
                             draft.msgid = EntityMessage.generateMessageId();
+                            draft.thread = new ThreadIndex(db.getOpenHelper().getWritableDatabase())
+                                    .thread(draft.account, draft.msgid, new ArrayList<String>());
                             draft.to = new Address[]{Helper.myAddress()};
                             draft.subject = context.getString(R.string.app_name) + " crash log";
                             draft.received = new Date().getTime();
@@ -667,7 +669,7 @@ public class ActivityView extends ActivityBase implements FragmentManager.OnBack
                 try {
                     db.beginTransaction();
 
-                    for (EntityMessage tmessage : db.message().getMessageByThread(message.account, message.thread)) {
+                    for (EntityMessage tmessage : db.message().getMessageByThread(message.account, message.id, message.thread)) {
                         db.message().setMessageUiSeen(tmessage.id, true);
                         EntityOperation.queue(db, tmessage, EntityOperation.SEEN, true);
                     }
@@ -772,7 +774,7 @@ public class ActivityView extends ActivityBase implements FragmentManager.OnBack
                 Bundle args = new Bundle();
                 args.putLong("id", attachment);
                 args.putParcelable("uri", data.getData());
-                new SimpleTask<Void>() {
+                new SimpleTask<Void>(SimpleTask.LANE_IO) {
                     @Override
                     protected Void onLoad(Context context, Bundle args) throws Throwable {
                         long id = args.getLong("id");
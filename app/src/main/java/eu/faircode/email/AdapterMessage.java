@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.Typeface;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -62,6 +63,7 @@ public class AdapterMessage extends PagedListAdapter<TupleMessageEx, AdapterMess
         TextView tvTime;
         ImageView ivAttachments;
         TextView tvSubject;
+        TextView tvPreview;
         TextView tvFolder;
         TextView tvCount;
         TextView tvError;
@@ -76,6 +78,7 @@ public class AdapterMessage extends PagedListAdapter<TupleMessageEx, AdapterMess
             tvTime = itemView.findViewById(R.id.tvTime);
             ivAttachments = itemView.findViewById(R.id.ivAttachments);
             tvSubject = itemView.findViewById(R.id.tvSubject);
+            tvPreview = itemView.findViewById(R.id.tvPreview);
             tvFolder = itemView.findViewById(R.id.tvFolder);
             tvCount = itemView.findViewById(R.id.tvCount);
             tvError = itemView.findViewById(R.id.tvError);
@@ -97,6 +100,7 @@ public class AdapterMessage extends PagedListAdapter<TupleMessageEx, AdapterMess
             tvSize.setText(null);
             tvTime.setText(null);
             tvSubject.setText(null);
+            tvPreview.setText(null);
             ivAttachments.setVisibility(View.GONE);
             tvFolder.setText(null);
             tvCount.setText(null);
@@ -107,19 +111,24 @@ public class AdapterMessage extends PagedListAdapter<TupleMessageEx, AdapterMess
         private void bindTo(final TupleMessageEx message) {
             pbLoading.setVisibility(View.GONE);
 
+            // The sender is formatted when storing the message
+            if (message.sender == null)
+                tvFrom.setText(MessageHelper.getSender(message.folderType, message.from, message.to));
+            else
+                tvFrom.setText(message.sender);
+
             if (EntityFolder.DRAFTS.equals(message.folderType) ||
                     EntityFolder.OUTBOX.equals(message.folderType) ||
-                    EntityFolder.SENT.equals(message.folderType)) {
-                tvFrom.setText(MessageHelper.getFormattedAddresses(message.to, false));
+                    EntityFolder.SENT.equals(message.folderType))
                 tvTime.setText(DateUtils.getRelativeTimeSpanString(context, message.sent == null ? message.received : message.sent));
-            } else {
-                tvFrom.setText(MessageHelper.getFormattedAddresses(message.from, false));
+            else
                 tvTime.setText(DateUtils.getRelativeTimeSpanString(context, message.received));
-            }
 
             tvSize.setVisibility(View.GONE);
 
             tvSubject.setText(message.subject);
+            tvPreview.setText(message.preview);
+            tvPreview.setVisibility(TextUtils.isEmpty(message.preview) ? View.GONE : View.VISIBLE);
             ivAttachments.setVisibility(message.attachments > 0 ? View.VISIBLE : View.GONE);
 
             if (viewType == ViewType.UNIFIED)
@@ -2,11 +2,13 @@ package eu.faircode.email;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
@@ -22,6 +24,7 @@ import androidx.room.TypeConverter;
 import androidx.room.TypeConverters;
 import androidx.room.migration.Migration;
 import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
 
 /*
     This file is part of FairEmail.
@@ -45,7 +48,7 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
 // https://developer.android.com/topic/libraries/architecture/room.html
 
 @Database(
-        version = 5,
+        version = 17,
         entities = {
                 EntityIdentity.class,
                 EntityAccount.class,
@@ -54,6 +57,7 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
                 EntityAttachment.class,
                 EntityOperation.class,
                 EntityAnswer.class,
+                EntityThread.class,
         }
 )
 
@@ -75,7 +79,17 @@ public abstract class DB extends RoomDatabase {
 
     private static DB sInstance;
 
+    private int bulk = 0;
+    private boolean pending = false;
+    private long refreshed = 0;
+    private int writes = 0;
+    private int refreshes = 0;
+    private Handler handler = new Handler(Looper.getMainLooper());
+
     private static final String DB_NAME = "email";
+    private static final long INVALIDATE_DELAY = 250; // milliseconds
+    private static final long INVALIDATE_DELAY_BULK = 1000; // milliseconds
+    private static final long THREAD_VISIBLE = 1L << 40; // larger than any message ID
 
     public static synchronized DB getInstance(Context context) {
         if (sInstance == null) {
@@ -105,9 +119,82 @@ public abstract class DB extends RoomDatabase {
         }
     }
 
+    // Room refreshes the invalidation tracker, and thereby requeries all active observers of changed tables,
+    // after each write transaction, which means after every single DAO write outside a transaction.
+    // Refreshes are coalesced to at most one per delay, with a longer delay inside a bulk scope.
+
+    @Override
+    public void endTransaction() {
+        getOpenHelper().getWritableDatabase().endTransaction();
+        if (!inTransaction())
+            invalidate();
+    }
+
+    void beginBulk() {
+        synchronized (this) {
+            if (bulk++ == 0) {
+                writes = 0;
+                refreshes = 0;
+            }
+        }
+    }
+
+    void endBulk() {
+        boolean outer;
+        synchronized (this) {
+            outer = (--bulk == 0);
+            if (outer)
+                Log.i(Helper.TAG, "Bulk writes=" + writes + " refreshes=" + refreshes);
+        }
+        // Nested scopes leave refreshing to the outermost scope
+        if (outer)
+            invalidate();
+    }
+
+    private void invalidate() {
+        synchronized (this) {
+            writes++;
+            if (pending)
+                return;
+
+            long delay = (bulk > 0 ? INVALIDATE_DELAY_BULK : INVALIDATE_DELAY);
+            long wait = refreshed + delay - SystemClock.elapsedRealtime();
+            if (wait > 0) {
+                pending = true;
+                handler.postDelayed(refresh, wait);
+                return;
+            }
+
+            refreshed = SystemClock.elapsedRealtime();
+            refreshes++;
+        }
+        getInvalidationTracker().refreshVersionsAsync();
+    }
+
+    private Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DB.this) {
+                pending = false;
+                refreshed = SystemClock.elapsedRealtime();
+                refreshes++;
+            }
+            getInvalidationTracker().refreshVersionsAsync();
+        }
+    };
+
     private static DB migrate(RoomDatabase.Builder<DB> builder) {
         return builder
                 .addCallback(new Callback() {
+                    @Override
+                    public void onCreate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "Creating triggers");
+                        createTriggers(db);
+                        SearchIndex.create(db);
+                        ThreadIndex.create(db);
+                        super.onCreate(db);
+                    }
+
                     @Override
                     public void onOpen(SupportSQLiteDatabase db) {
                         Log.i(Helper.TAG, "Database version=" + db.getVersion());
@@ -143,9 +230,331 @@ public abstract class DB extends RoomDatabase {
                         db.execSQL("ALTER TABLE `identity` ADD COLUMN `auth_type` INTEGER NOT NULL DEFAULT 1");
                     }
                 })
+                .addMigrations(new Migration(5, 6) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `thread` (`id` INTEGER PRIMARY KEY AUTOINCREMENT, `account` INTEGER, `folder` INTEGER NOT NULL, `thread` TEXT, `message` INTEGER NOT NULL, `received` INTEGER NOT NULL, `count` INTEGER NOT NULL, `unseen` INTEGER NOT NULL)");
+                        db.execSQL("CREATE  INDEX `index_thread_folder_thread` ON `thread` (`folder`, `thread`)");
+                        db.execSQL("CREATE  INDEX `index_thread_folder_received` ON `thread` (`folder`, `received`)");
+                        db.execSQL("CREATE  INDEX `index_thread_thread` ON `thread` (`thread`)");
+                        db.execSQL("CREATE  INDEX `index_message_folder_thread` ON `message` (`folder`, `thread`)");
+                        db.execSQL(insertThreads("m.thread IS NOT NULL", "m.folder, m.thread"));
+                        db.execSQL(insertThreads("m.thread IS NULL", "m.id"));
+                        createTriggers(db);
+                    }
+                })
+                .addMigrations(new Migration(6, 7) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `message` ADD COLUMN `attachments` INTEGER NOT NULL DEFAULT 0");
+                        db.execSQL("UPDATE `message` SET attachments =" +
+                                " (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id)");
+                        createTriggers(db);
+                    }
+                })
+                .addMigrations(new Migration(7, 8) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("DROP INDEX IF EXISTS `index_message_thread`");
+                        db.execSQL("DROP INDEX IF EXISTS `index_message_ui_seen`");
+                        db.execSQL("DROP INDEX IF EXISTS `index_message_ui_hide`");
+                        db.execSQL("CREATE  INDEX `index_message_account_thread` ON `message` (`account`, `thread`)");
+                        db.execSQL("CREATE  INDEX `index_message_folder_received` ON `message` (`folder`, `received`)");
+                        db.execSQL("CREATE  INDEX `index_message_folder_ui_seen` ON `message` (`folder`, `ui_seen`)");
+                    }
+                })
+                .addMigrations(new Migration(8, 9) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `folder` ADD COLUMN `messages` INTEGER NOT NULL DEFAULT 0");
+                        db.execSQL("ALTER TABLE `folder` ADD COLUMN `unseen` INTEGER NOT NULL DEFAULT 0");
+                        db.execSQL("UPDATE `folder` SET" +
+                                " messages = (SELECT COUNT(m.id) FROM message m WHERE m.folder = folder.id AND NOT m.ui_hide)," +
+                                " unseen = (SELECT COUNT(m.id) FROM message m WHERE m.folder = folder.id AND NOT m.ui_hide AND NOT m.ui_seen)");
+                        createTriggers(db);
+                    }
+                })
+                .addMigrations(new Migration(9, 10) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        Cursor cursor = null;
+                        try {
+                            cursor = db.query("SELECT id, `from`, `to`, `cc`, `bcc`, `reply` FROM `message`");
+                            while (cursor.moveToNext()) {
+                                Object[] args = new Object[6];
+                                for (int i = 0; i < 5; i++)
+                                    args[i] = Converters.encodeAddresses(Converters.decodeAddresses(cursor.getString(i + 1)));
+                                args[5] = cursor.getLong(0);
+                                db.execSQL("UPDATE `message` SET `from` = ?, `to` = ?, `cc` = ?, `bcc` = ?, `reply` = ?" +
+                                        " WHERE id = ?", args);
+                            }
+                        } finally {
+                            if (cursor != null)
+                                cursor.close();
+                        }
+                    }
+                })
+                .addMigrations(new Migration(10, 11) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `message` ADD COLUMN `sender` TEXT");
+                        db.execSQL("ALTER TABLE `message` ADD COLUMN `preview` TEXT");
+                        // Previews of existing messages would require reading all message files
+                        Cursor cursor = null;
+                        try {
+                            cursor = db.query("SELECT message.id, folder.type, message.`from`, message.`to`" +
+                                    " FROM `message` JOIN `folder` ON folder.id = message.folder");
+                            while (cursor.moveToNext())
+                                db.execSQL("UPDATE `message` SET `sender` = ? WHERE id = ?", new Object[]{
+                                        MessageHelper.getSender(cursor.getString(1),
+                                                Converters.decodeAddresses(cursor.getString(2)),
+                                                Converters.decodeAddresses(cursor.getString(3))),
+                                        cursor.getLong(0)});
+                        } finally {
+                            if (cursor != null)
+                                cursor.close();
+                        }
+                    }
+                })
+                .addMigrations(new Migration(11, 12) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("DROP INDEX IF EXISTS `index_thread_folder_received`");
+                        db.execSQL("CREATE  INDEX `index_thread_folder_received_message` ON `thread` (`folder`, `received`, `message`)");
+                        db.execSQL("CREATE  INDEX `index_thread_received_message` ON `thread` (`received`, `message`)");
+                    }
+                })
+                .addMigrations(new Migration(12, 13) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        SearchIndex.create(db);
+                        // Existing messages are indexed without body text, which would require reading all message files
+                        SupportSQLiteStatement index = SearchIndex.compileInsert(db);
+                        Cursor cursor = null;
+                        try {
+                            cursor = db.query("SELECT id, subject, `from`, `to`, `cc` FROM `message`");
+                            while (cursor.moveToNext()) {
+                                EntityMessage message = new EntityMessage();
+                                message.id = cursor.getLong(0);
+                                message.subject = cursor.getString(1);
+                                message.from = Converters.decodeAddresses(cursor.getString(2));
+                                message.to = Converters.decodeAddresses(cursor.getString(3));
+                                message.cc = Converters.decodeAddresses(cursor.getString(4));
+                                SearchIndex.insert(index, message, null);
+                            }
+                        } finally {
+                            if (cursor != null)
+                                cursor.close();
+                        }
+                    }
+                })
+                .addMigrations(new Migration(13, 14) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        ThreadIndex.create(db);
+
+                        // The type of the thread column changes, which requires rebuilding the message table
+                        // Foreign keys are not enforced during migrations, so dropping the table does not cascade
+                        // Renaming fails when triggers refer to missing tables, so the triggers are recreated afterwards
+                        db.execSQL("DROP TRIGGER IF EXISTS `attachment_insert`");
+                        db.execSQL("DROP TRIGGER IF EXISTS `attachment_update`");
+                        db.execSQL("DROP TRIGGER IF EXISTS `attachment_delete`");
+                        db.execSQL("CREATE TABLE `message_new` (`id` INTEGER PRIMARY KEY AUTOINCREMENT, `account` INTEGER, `folder` INTEGER NOT NULL, `identity` INTEGER, `replying` INTEGER, `uid` INTEGER, `msgid` TEXT, `references` TEXT, `inreplyto` TEXT, `thread` INTEGER, `from` TEXT, `to` TEXT, `cc` TEXT, `bcc` TEXT, `reply` TEXT, `subject` TEXT, `sender` TEXT, `preview` TEXT, `sent` INTEGER, `received` INTEGER NOT NULL, `stored` INTEGER NOT NULL, `seen` INTEGER NOT NULL, `ui_seen` INTEGER NOT NULL, `ui_hide` INTEGER NOT NULL, `error` TEXT, `attachments` INTEGER NOT NULL, FOREIGN KEY(`account`) REFERENCES `account`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE , FOREIGN KEY(`folder`) REFERENCES `folder`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE , FOREIGN KEY(`identity`) REFERENCES `identity`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE , FOREIGN KEY(`replying`) REFERENCES `message`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE )");
+                        String columns = "`id`, `account`, `folder`, `identity`, `replying`, `uid`, `msgid`, `references`, `inreplyto`" +
+                                ", `from`, `to`, `cc`, `bcc`, `reply`, `subject`, `sender`, `preview`" +
+                                ", `sent`, `received`, `stored`, `seen`, `ui_seen`, `ui_hide`, `error`, `attachments`";
+                        db.execSQL("INSERT INTO `message_new` (" + columns + ") SELECT " + columns + " FROM `message`");
+                        db.execSQL("DROP TABLE `message`");
+                        db.execSQL("ALTER TABLE `message_new` RENAME TO `message`");
+                        db.execSQL("CREATE  INDEX `index_message_account` ON `message` (`account`)");
+                        db.execSQL("CREATE  INDEX `index_message_folder` ON `message` (`folder`)");
+                        db.execSQL("CREATE  INDEX `index_message_identity` ON `message` (`identity`)");
+                        db.execSQL("CREATE  INDEX `index_message_replying` ON `message` (`replying`)");
+                        db.execSQL("CREATE UNIQUE INDEX `index_message_folder_uid` ON `message` (`folder`, `uid`)");
+                        db.execSQL("CREATE UNIQUE INDEX `index_message_msgid_folder` ON `message` (`msgid`, `folder`)");
+                        db.execSQL("CREATE  INDEX `index_message_folder_thread` ON `message` (`folder`, `thread`)");
+                        db.execSQL("CREATE  INDEX `index_message_account_thread` ON `message` (`account`, `thread`)");
+                        db.execSQL("CREATE  INDEX `index_message_folder_received` ON `message` (`folder`, `received`)");
+                        db.execSQL("CREATE  INDEX `index_message_folder_ui_seen` ON `message` (`folder`, `ui_seen`)");
+                        db.execSQL("CREATE  INDEX `index_message_received` ON `message` (`received`)");
+
+                        // The Message-ID of archived messages is not stored, so these are threaded by their references only
+                        ThreadIndex threads = new ThreadIndex(db);
+                        Cursor cursor = null;
+                        try {
+                            cursor = db.query("SELECT id, account, msgid, `references`, inreplyto FROM `message`" +
+                                    " WHERE account IS NOT NULL ORDER BY received");
+                            while (cursor.moveToNext()) {
+                                Long thread = threads.thread(cursor.getLong(1), cursor.getString(2),
+                                        ThreadIndex.getReferences(cursor.getString(3), cursor.getString(4)));
+                                if (thread != null)
+                                    db.execSQL("UPDATE `message` SET thread = ? WHERE id = ?", new Object[]{thread, cursor.getLong(0)});
+                            }
+                        } finally {
+                            if (cursor != null)
+                                cursor.close();
+                        }
+
+                        db.execSQL("DROP TABLE `thread`");
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `thread` (`id` INTEGER PRIMARY KEY AUTOINCREMENT, `account` INTEGER, `folder` INTEGER NOT NULL, `thread` INTEGER, `message` INTEGER NOT NULL, `received` INTEGER NOT NULL, `count` INTEGER NOT NULL, `unseen` INTEGER NOT NULL)");
+                        db.execSQL("CREATE  INDEX `index_thread_folder_thread` ON `thread` (`folder`, `thread`)");
+                        db.execSQL("CREATE  INDEX `index_thread_folder_received_message` ON `thread` (`folder`, `received`, `message`)");
+                        db.execSQL("CREATE  INDEX `index_thread_received_message` ON `thread` (`received`, `message`)");
+                        db.execSQL("CREATE  INDEX `index_thread_thread` ON `thread` (`thread`)");
+                        db.execSQL(insertThreads("m.thread IS NOT NULL", "m.folder, m.thread"));
+                        db.execSQL(insertThreads("m.thread IS NULL", "m.id"));
+
+                        createTriggers(db);
+                        SearchIndex.create(db);
+                    }
+                })
+                .addMigrations(new Migration(14, 15) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        // The thread index is rebuilt with Message-ID hashes, keeping the row IDs, which number the threads
+                        List<Object[]> rows = new ArrayList<>();
+                        Cursor cursor = null;
+                        try {
+                            cursor = db.query("SELECT id, account, msgid, thread FROM `" + ThreadIndex.TABLE_NAME + "`");
+                            while (cursor.moveToNext())
+                                rows.add(new Object[]{
+                                        cursor.getLong(0), cursor.getLong(1),
+                                        ThreadIndex.hash(cursor.getString(2)), cursor.getString(2),
+                                        cursor.getLong(3)});
+                        } finally {
+                            if (cursor != null)
+                                cursor.close();
+                        }
+                        db.execSQL("DROP TABLE `" + ThreadIndex.TABLE_NAME + "`");
+                        ThreadIndex.create(db);
+                        for (Object[] row : rows)
+                            db.execSQL("INSERT OR IGNORE INTO `" + ThreadIndex.TABLE_NAME + "`" +
+                                    " (id, account, hash, msgid, thread) VALUES (?, ?, ?, ?, ?)", row);
+                    }
+                })
+                .addMigrations(new Migration(15, 16) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        // Threads of hidden messages only referred to the oldest message
+                        db.execSQL("DROP TRIGGER IF EXISTS `thread_insert`");
+                        db.execSQL("DROP TRIGGER IF EXISTS `thread_update`");
+                        db.execSQL("DROP TRIGGER IF EXISTS `thread_delete`");
+                        db.execSQL("DELETE FROM `thread`");
+                        db.execSQL(insertThreads("m.thread IS NOT NULL", "m.folder, m.thread"));
+                        db.execSQL(insertThreads("m.thread IS NULL", "m.id"));
+                        createTriggers(db);
+                    }
+                })
+                .addMigrations(new Migration(16, 17) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        // The thread index is rebuilt without the unused parent column,
+                        // leaving out the Message-IDs of threads without messages
+                        List<Object[]> rows = new ArrayList<>();
+                        Cursor cursor = null;
+                        try {
+                            cursor = db.query("SELECT r.id, r.account, r.hash, r.msgid, r.thread FROM `" + ThreadIndex.TABLE_NAME + "` r" +
+                                    " WHERE EXISTS (SELECT m.id FROM `message` m WHERE m.account = r.account AND m.thread = r.thread)");
+                            while (cursor.moveToNext())
+                                rows.add(new Object[]{
+                                        cursor.getLong(0), cursor.getLong(1), cursor.getLong(2),
+                                        cursor.getString(3), cursor.getLong(4)});
+                        } finally {
+                            if (cursor != null)
+                                cursor.close();
+                        }
+                        db.execSQL("DROP TABLE `" + ThreadIndex.TABLE_NAME + "`");
+                        ThreadIndex.create(db);
+                        for (Object[] row : rows)
+                            db.execSQL("INSERT INTO `" + ThreadIndex.TABLE_NAME + "`" +
+                                    " (id, account, hash, msgid, thread) VALUES (?, ?, ?, ?, ?)", row);
+                    }
+                })
                 .build();
     }
 
+    // The thread table is kept in sync with the message table by triggers,
+    // so every write path, including cascaded deletes, updates the thread summaries
+    // The same applies to the number of attachments of a message and the message counters of a folder
+    static void createTriggers(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `thread_insert` AFTER INSERT ON `message`" +
+                " BEGIN " + refreshThread("NEW") + " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `thread_update`" +
+                " AFTER UPDATE OF `folder`, `thread`, `received`, `ui_seen`, `ui_hide` ON `message`" +
+                " BEGIN " + refreshThread("OLD") + refreshThread("NEW") + " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `thread_delete` AFTER DELETE ON `message`" +
+                " BEGIN " + refreshThread("OLD") + " END");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `attachment_insert` AFTER INSERT ON `attachment`" +
+                " BEGIN " + countAttachments("NEW") + " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `attachment_update` AFTER UPDATE OF `message` ON `attachment`" +
+                " BEGIN " + countAttachments("OLD") + countAttachments("NEW") + " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `attachment_delete` AFTER DELETE ON `attachment`" +
+                " BEGIN " + countAttachments("OLD") + " END");
+
+        // Folder counters are only written when they change, to not needlessly invalidate observers
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `folder_count_insert` AFTER INSERT ON `message`" +
+                " WHEN NOT NEW.ui_hide" +
+                " BEGIN " + countFolder("NEW", "+") + " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `folder_count_update`" +
+                " AFTER UPDATE OF `folder`, `ui_seen`, `ui_hide` ON `message`" +
+                " WHEN OLD.folder <> NEW.folder OR OLD.ui_seen <> NEW.ui_seen OR OLD.ui_hide <> NEW.ui_hide" +
+                " BEGIN " + countFolder("OLD", "-") + countFolder("NEW", "+") + " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `folder_count_delete` AFTER DELETE ON `message`" +
+                " WHEN NOT OLD.ui_hide" +
+                " BEGIN " + countFolder("OLD", "-") + " END");
+    }
+
+    private static String countFolder(String row, String op) {
+        return "UPDATE `folder` SET" +
+                " messages = messages " + op + " (CASE WHEN " + row + ".ui_hide THEN 0 ELSE 1 END)," +
+                " unseen = unseen " + op + " (CASE WHEN " + row + ".ui_hide OR " + row + ".ui_seen THEN 0 ELSE 1 END)" +
+                " WHERE id = " + row + ".folder;";
+    }
+
+    private static String countAttachments(String row) {
+        return "UPDATE `message` SET attachments =" +
+                " (SELECT COUNT(a.id) FROM attachment a WHERE a.message = " + row + ".message)" +
+                " WHERE id = " + row + ".message;";
+    }
+
+    private static String refreshThread(String row) {
+        return "DELETE FROM `thread`" +
+                " WHERE " + row + ".thread IS NOT NULL" +
+                " AND `thread`.folder = " + row + ".folder AND `thread`.thread = " + row + ".thread;" +
+                " DELETE FROM `thread`" +
+                " WHERE " + row + ".thread IS NULL" +
+                " AND `thread`.folder = " + row + ".folder AND `thread`.thread IS NULL AND `thread`.message = " + row + ".id;" +
+                " " + insertThreads(row + ".thread IS NOT NULL AND m.folder = " + row + ".folder AND m.thread = " + row + ".thread", "m.folder") + ";" +
+                " " + insertThreads(row + ".thread IS NULL AND m.id = " + row + ".id", "m.id") + ";";
+    }
+
+    // About the bare columns: see DaoMessage
+    // Visible messages are offset, so the latest visible message is preferred, else the latest hidden message
+    private static String insertThreads(String where, String group) {
+        return "INSERT INTO `thread` (account, folder, thread, message, received, count, unseen)" +
+                " SELECT m.account, m.folder, m.thread" +
+                ", MAX(m.id + CASE WHEN m.ui_hide THEN 0 ELSE " + THREAD_VISIBLE + " END) % " + THREAD_VISIBLE +
+                ", m.received" +
+                ", SUM(CASE WHEN m.ui_hide THEN 0 ELSE 1 END)" +
+                ", SUM(CASE WHEN m.ui_hide OR m.ui_seen THEN 0 ELSE 1 END)" +
+                " FROM message m" +
+                " WHERE " + where +
+                " GROUP BY " + group;
+    }
+
     public static class Converters {
         @TypeConverter
         public static String[] fromStringArray(String value) {
@@ -157,38 +566,72 @@ public abstract class DB extends RoomDatabase {
             return TextUtils.join(",", value);
         }
 
+        // Addresses are stored as a sequence of length prefixed fields, address first, then personal name:
+        // <length>:<address><length>:<personal>..., with a length of -1 for a missing field
+        // This avoids building JSON objects for every address of every message row read or written
+        // Values starting with [ are JSON, as stored by previous versions
+
         @TypeConverter
         public static String encodeAddresses(Address[] addresses) {
             if (addresses == null)
                 return null;
-            JSONArray jaddresses = new JSONArray();
-            if (addresses != null)
-                for (Address address : addresses)
-                    try {
-                        if (address instanceof InternetAddress) {
-                            String a = ((InternetAddress) address).getAddress();
-                            String p = ((InternetAddress) address).getPersonal();
-                            JSONObject jaddress = new JSONObject();
-                            if (a != null)
-                                jaddress.put("address", a);
-                            if (p != null)
-                                jaddress.put("personal", p);
-                            jaddresses.put(jaddress);
-                        } else {
-                            JSONObject jaddress = new JSONObject();
-                            jaddress.put("address", address.toString());
-                            jaddresses.put(jaddress);
-                        }
-                    } catch (JSONException ex) {
-                        Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
-                    }
-            return jaddresses.toString();
+            StringBuilder sb = new StringBuilder();
+            for (Address address : addresses)
+                if (address instanceof InternetAddress) {
+                    appendField(sb, ((InternetAddress) address).getAddress());
+                    appendField(sb, ((InternetAddress) address).getPersonal());
+                } else {
+                    appendField(sb, address.toString());
+                    appendField(sb, null);
+                }
+            return sb.toString();
         }
 
         @TypeConverter
-        public static Address[] decodeAddresses(String json) {
-            if (json == null)
+        public static Address[] decodeAddresses(String value) {
+            if (value == null)
                 return null;
+            if (value.startsWith("["))
+                return decodeJsonAddresses(value);
+            List<Address> result = new ArrayList<>();
+            try {
+                int[] pos = new int[]{0};
+                while (pos[0] < value.length()) {
+                    String a = readField(value, pos);
+                    String p = readField(value, pos);
+                    // Same constructors as for JSON, so that addresses are handled as before
+                    if (p == null)
+                        result.add(new InternetAddress(a));
+                    else
+                        result.add(new InternetAddress(a, p));
+                }
+            } catch (Throwable ex) {
+                Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+            }
+            return result.toArray(new Address[0]);
+        }
+
+        private static void appendField(StringBuilder sb, String field) {
+            if (field == null)
+                sb.append("-1:");
+            else
+                sb.append(field.length()).append(':').append(field);
+        }
+
+        private static String readField(String value, int[] pos) {
+            int colon = value.indexOf(':', pos[0]);
+            if (colon < 0)
+                throw new IllegalArgumentException("Invalid address field at " + pos[0]);
+            int length = Integer.parseInt(value.substring(pos[0], colon));
+            if (length < 0) {
+                pos[0] = colon + 1;
+                return null;
+            }
+            pos[0] = colon + 1 + length;
+            return value.substring(colon + 1, pos[0]);
+        }
+
+        private static Address[] decodeJsonAddresses(String json) {
             List<Address> result = new ArrayList<>();
             try {
                 JSONArray jaddresses = new JSONArray(json);
@@ -66,6 +66,9 @@ public interface DaoAttachment {
     @Insert
     long insertAttachment(EntityAttachment attachment);
 
+    @Insert
+    List<Long> insertAttachments(List<EntityAttachment> attachments);
+
     @Update
     void updateAttachment(EntityAttachment attachment);
 
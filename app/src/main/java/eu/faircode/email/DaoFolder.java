@@ -45,35 +45,24 @@ public interface DaoFolder {
     List<EntityFolder> getUserFolders(long account);
 
     @Query("SELECT folder.*, account.name AS accountName" +
-            ", COUNT(message.id) AS messages" +
-            ", SUM(CASE WHEN message.ui_seen = 0 THEN 1 ELSE 0 END) AS unseen" +
             " FROM folder" +
             " LEFT JOIN account ON account.id = folder.account" +
-            " LEFT JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
-            " WHERE folder.account = :account OR folder.account IS NULL" +
-            " GROUP BY folder.id")
+            " WHERE folder.account = :account OR folder.account IS NULL")
     LiveData<List<TupleFolderEx>> liveFolders(long account);
 
     @Query("SELECT folder.*, account.name AS accountName" +
-            ", COUNT(message.id) AS messages" +
-            ", SUM(CASE WHEN message.ui_seen = 0 THEN 1 ELSE 0 END) AS unseen" +
             " FROM folder" +
             " JOIN account ON account.id = folder.account" +
-            " JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
             " WHERE account.`synchronize`" +
-            " AND folder.type = '" + EntityFolder.INBOX + "'" +
-            " GROUP BY folder.id")
+            " AND folder.type = '" + EntityFolder.INBOX + "'")
     LiveData<List<TupleFolderEx>> liveUnified();
 
     @Query("SELECT folder.* FROM folder WHERE folder.id = :id")
     LiveData<EntityFolder> liveFolder(long id);
 
     @Query("SELECT folder.*, account.name AS accountName" +
-            ", COUNT(message.id) AS messages" +
-            ", SUM(CASE WHEN message.ui_seen = 0 THEN 1 ELSE 0 END) AS unseen" +
             " FROM folder" +
             " LEFT JOIN account ON account.id = folder.account" +
-            " LEFT JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
             " WHERE folder.id = :id")
     LiveData<TupleFolderEx> liveFolderEx(long id);
 
@@ -102,6 +91,9 @@ public interface DaoFolder {
     @Query("UPDATE folder SET state = :state WHERE id = :id")
     int setFolderState(long id, String state);
 
+    @Query("UPDATE folder SET state = :state WHERE account = :account")
+    int setFolderStates(long account, String state);
+
     @Query("UPDATE folder SET error = :error WHERE id = :id")
     int setFolderError(long id, String error);
 
@@ -25,8 +25,11 @@ import androidx.lifecycle.LiveData;
 import androidx.paging.DataSource;
 import androidx.room.Dao;
 import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.RawQuery;
 import androidx.room.Update;
+import androidx.sqlite.db.SupportSQLiteQuery;
 
 @Dao
 public interface DaoMessage {
@@ -35,49 +38,95 @@ public interface DaoMessage {
     // all bare columns in the result set take values from the input row which also contains the minimum or maximum."
     // https://www.sqlite.org/lang_select.html
 
+    // The thread table holds a summary of the messages of a thread per folder, maintained by triggers,
+    // so list pages are range scans on the thread table instead of aggregations over all messages
+
+    // Pages are selected by key (received, message) instead of by offset, see MessageDataSource,
+    // so loading a page is an index seek regardless of the scroll position
+    // Pages before a key are returned in ascending order
+
     @Query("SELECT message.*, account.name AS accountName, folder.name as folderName, folder.type as folderType" +
-            ", COUNT(message.id) as count" +
-            ", SUM(CASE WHEN message.ui_seen THEN 0 ELSE 1 END) as unseen" +
-            ", (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id) AS attachments" +
-            ", MAX(CASE WHEN folder.type = '" + EntityFolder.INBOX + "' THEN message.id ELSE 0 END) as dummy" +
-            " FROM message" +
-            " JOIN account ON account.id = message.account" +
-            " JOIN folder ON folder.id = message.folder" +
+            ", CASE WHEN thread.thread IS NULL THEN thread.count" +
+            "  ELSE (SELECT SUM(t.count) FROM thread t WHERE t.thread = thread.thread) END AS count" +
+            ", CASE WHEN thread.thread IS NULL THEN thread.unseen" +
+            "  ELSE (SELECT SUM(t.unseen) FROM thread t WHERE t.thread = thread.thread) END AS unseen" +
+            " FROM thread" +
+            " JOIN message ON message.id = thread.message" +
+            " JOIN account ON account.id = thread.account" +
+            " JOIN folder ON folder.id = thread.folder" +
             " WHERE account.`synchronize`" +
-            " AND (NOT message.ui_hide OR :debug)" +
-            " GROUP BY CASE WHEN message.thread IS NULL THEN message.id ELSE message.thread END" +
-            " HAVING SUM(CASE WHEN folder.type = '" + EntityFolder.INBOX + "' THEN 1 ELSE 0 END) > 0" +
-            " ORDER BY message.received DESC")
-    DataSource.Factory<Integer, TupleMessageEx> pagedUnifiedInbox(boolean debug);
+            " AND folder.type = '" + EntityFolder.INBOX + "'" +
+            " AND (thread.count > 0 OR :debug)" +
+            " AND thread.received <= :received AND (thread.received < :received OR thread.message < :id)" +
+            " ORDER BY thread.received DESC, thread.message DESC" +
+            " LIMIT :count")
+    List<TupleMessageEx> pageUnifiedInboxAfter(long received, long id, int count, boolean debug);
 
     @Query("SELECT message.*, account.name AS accountName, folder.name as folderName, folder.type as folderType" +
-            ", COUNT(message.id) as count" +
-            ", SUM(CASE WHEN message.ui_seen THEN 0 ELSE 1 END) as unseen" +
-            ", (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id) AS attachments" +
-            ", MAX(CASE WHEN folder.id = :folder THEN message.id ELSE 0 END) as dummy" +
-            " FROM message" +
-            " LEFT JOIN account ON account.id = message.account" +
-            " JOIN folder ON folder.id = message.folder" +
-            " LEFT JOIN folder f ON f.id = :folder" +
-            " WHERE (NOT message.ui_hide OR :debug)" +
-            " GROUP BY CASE WHEN message.thread IS NULL THEN message.id ELSE message.thread END" +
-            " HAVING SUM(CASE WHEN folder.id = :folder THEN 1 ELSE 0 END) > 0" +
-            " ORDER BY message.received DESC, message.sent DESC")
-    DataSource.Factory<Integer, TupleMessageEx> pagedFolder(long folder, boolean debug);
+            ", CASE WHEN thread.thread IS NULL THEN thread.count" +
+            "  ELSE (SELECT SUM(t.count) FROM thread t WHERE t.thread = thread.thread) END AS count" +
+            ", CASE WHEN thread.thread IS NULL THEN thread.unseen" +
+            "  ELSE (SELECT SUM(t.unseen) FROM thread t WHERE t.thread = thread.thread) END AS unseen" +
+            " FROM thread" +
+            " JOIN message ON message.id = thread.message" +
+            " JOIN account ON account.id = thread.account" +
+            " JOIN folder ON folder.id = thread.folder" +
+            " WHERE account.`synchronize`" +
+            " AND folder.type = '" + EntityFolder.INBOX + "'" +
+            " AND (thread.count > 0 OR :debug)" +
+            " AND thread.received >= :received AND (thread.received > :received OR thread.message > :id)" +
+            " ORDER BY thread.received, thread.message" +
+            " LIMIT :count")
+    List<TupleMessageEx> pageUnifiedInboxBefore(long received, long id, int count, boolean debug);
+
+    @Query("SELECT message.*, account.name AS accountName, folder.name as folderName, folder.type as folderType" +
+            ", CASE WHEN thread.thread IS NULL THEN thread.count" +
+            "  ELSE (SELECT SUM(t.count) FROM thread t WHERE t.thread = thread.thread) END AS count" +
+            ", CASE WHEN thread.thread IS NULL THEN thread.unseen" +
+            "  ELSE (SELECT SUM(t.unseen) FROM thread t WHERE t.thread = thread.thread) END AS unseen" +
+            " FROM thread" +
+            " JOIN message ON message.id = thread.message" +
+            " LEFT JOIN account ON account.id = thread.account" +
+            " JOIN folder ON folder.id = thread.folder" +
+            " WHERE thread.folder = :folder" +
+            " AND (thread.count > 0 OR :debug)" +
+            " AND thread.received <= :received AND (thread.received < :received OR thread.message < :id)" +
+            " ORDER BY thread.received DESC, thread.message DESC" +
+            " LIMIT :count")
+    List<TupleMessageEx> pageFolderAfter(long folder, long received, long id, int count, boolean debug);
+
+    @Query("SELECT message.*, account.name AS accountName, folder.name as folderName, folder.type as folderType" +
+            ", CASE WHEN thread.thread IS NULL THEN thread.count" +
+            "  ELSE (SELECT SUM(t.count) FROM thread t WHERE t.thread = thread.thread) END AS count" +
+            ", CASE WHEN thread.thread IS NULL THEN thread.unseen" +
+            "  ELSE (SELECT SUM(t.unseen) FROM thread t WHERE t.thread = thread.thread) END AS unseen" +
+            " FROM thread" +
+            " JOIN message ON message.id = thread.message" +
+            " LEFT JOIN account ON account.id = thread.account" +
+            " JOIN folder ON folder.id = thread.folder" +
+            " WHERE thread.folder = :folder" +
+            " AND (thread.count > 0 OR :debug)" +
+            " AND thread.received >= :received AND (thread.received > :received OR thread.message > :id)" +
+            " ORDER BY thread.received, thread.message" +
+            " LIMIT :count")
+    List<TupleMessageEx> pageFolderBefore(long folder, long received, long id, int count, boolean debug);
 
     @Query("SELECT message.*, account.name AS accountName, folder.name as folderName, folder.type as folderType" +
             ", 1 AS count" +
             ", CASE WHEN message.ui_seen THEN 0 ELSE 1 END AS unseen" +
-            ", (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id) AS attachments" +
             " FROM message" +
             " LEFT JOIN account ON account.id = message.account" +
             " JOIN folder ON folder.id = message.folder" +
             " WHERE (NOT message.ui_hide OR :debug)" +
             " AND message.account = (SELECT m1.account FROM message m1 WHERE m1.id = :msgid)" +
-            " AND message.thread = (SELECT m2.thread FROM message m2 WHERE m2.id = :msgid)" +
+            " AND (message.id = :msgid OR message.thread = (SELECT m2.thread FROM message m2 WHERE m2.id = :msgid))" +
             " ORDER BY message.received DESC, message.sent DESC")
     DataSource.Factory<Integer, TupleMessageEx> pagedThread(long msgid, boolean debug);
 
+    // Full text search, see SearchIndex
+    @RawQuery
+    List<TupleMessageEx> searchMessages(SupportSQLiteQuery query);
+
     @Query("SELECT *" +
             " FROM message" +
             " WHERE id = :id")
@@ -94,23 +143,27 @@ public interface DaoMessage {
             " AND uid = :uid")
     EntityMessage getMessageByUid(long folder, long uid);
 
-    @Query("SELECT message.* FROM message" +
-            " JOIN folder ON folder.id = message.folder" +
-            " WHERE message.account = :account" +
-            " AND message.msgid = :msgid")
-    List<EntityMessage> getMessageByMsgId(long account, String msgid);
+    // The thread is looked up by Message-ID hash with ThreadIndex.getThread,
+    // so that both lookups are on integer indexes
+    @Query("SELECT * FROM message" +
+            " WHERE account = :account" +
+            " AND thread = :thread" +
+            " AND msgid = :msgid")
+    List<EntityMessage> getMessageByMsgId(long account, long thread, String msgid);
 
+    // Including the message itself, which has no thread when it has no Message-IDs
     @Query("SELECT message.* FROM message" +
             " JOIN folder ON folder.id = message.folder" +
             " WHERE message.account = :account" +
-            " AND message.thread = :thread" +
+            " AND (message.id = :id OR message.thread = :thread)" +
             " AND folder.type <> '" + EntityFolder.OUTBOX + "'")
-    List<EntityMessage> getMessageByThread(long account, String thread);
+    List<EntityMessage> getMessageByThread(long account, long id, Long thread);
 
     @Query("SELECT message.*, account.name AS accountName, folder.name as folderName, folder.type as folderType" +
-            ", (SELECT COUNT(m1.id) FROM message m1 WHERE m1.account = message.account AND m1.thread = message.thread AND NOT m1.ui_hide) AS count" +
-            ", (SELECT COUNT(m2.id) FROM message m2 WHERE m2.account = message.account AND m2.thread = message.thread AND NOT m2.ui_hide AND NOT m2.ui_seen) AS unseen" +
-            ", (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id) AS attachments" +
+            ", CASE WHEN message.thread IS NULL THEN 1" +
+            "  ELSE (SELECT COUNT(m1.id) FROM message m1 WHERE m1.account = message.account AND m1.thread = message.thread AND NOT m1.ui_hide) END AS count" +
+            ", CASE WHEN message.thread IS NULL THEN (CASE WHEN message.ui_seen THEN 0 ELSE 1 END)" +
+            "  ELSE (SELECT COUNT(m2.id) FROM message m2 WHERE m2.account = message.account AND m2.thread = message.thread AND NOT m2.ui_hide AND NOT m2.ui_seen) END AS unseen" +
             " FROM message" +
             " LEFT JOIN account ON account.id = message.account" +
             " JOIN folder ON folder.id = message.folder" +
@@ -133,6 +186,9 @@ public interface DaoMessage {
     @Insert
     long insertMessage(EntityMessage message);
 
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    List<Long> insertMessages(List<EntityMessage> messages);
+
     @Update
     void updateMessage(EntityMessage message);
 
@@ -142,6 +198,12 @@ public interface DaoMessage {
     @Query("UPDATE message SET seen = :seen WHERE id = :id")
     int setMessageSeen(long id, boolean seen);
 
+    @Query("UPDATE OR IGNORE message SET folder = :folder, uid = :uid WHERE id = :id")
+    int setMessageFolderUid(long id, long folder, Long uid);
+
+    @Query("UPDATE message SET seen = :seen, ui_seen = :seen WHERE id = :id")
+    int setMessageSynchronizedSeen(long id, boolean seen);
+
     @Query("UPDATE message SET ui_seen = :ui_seen WHERE id = :id")
     int setMessageUiSeen(long id, boolean ui_seen);
 
@@ -160,6 +222,9 @@ public interface DaoMessage {
     @Query("DELETE FROM message WHERE folder = :folder")
     void deleteMessages(long folder);
 
+    @Query("DELETE FROM message WHERE folder = :folder AND uid IN (:uids)")
+    int deleteMessages(long folder, List<Long> uids);
+
     @Query("DELETE FROM message WHERE folder = :folder AND received < :received AND NOT uid IS NULL")
     int deleteMessagesBefore(long folder, long received);
 }
\ No newline at end of file
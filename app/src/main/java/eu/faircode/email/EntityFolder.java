@@ -23,6 +23,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.List;
 
 import androidx.annotation.NonNull;
@@ -61,6 +62,10 @@ public class EntityFolder implements Parcelable {
     public Integer after; // days
     public String state;
     public String error;
+    @NonNull
+    public Integer messages = 0; // visible, maintained by database triggers
+    @NonNull
+    public Integer unseen = 0; // visible, maintained by database triggers
 
     static final String INBOX = "Inbox";
     static final String OUTBOX = "Outbox";
@@ -111,6 +116,19 @@ public class EntityFolder implements Parcelable {
     public EntityFolder() {
     }
 
+    // Start of the synchronization window, older messages are not stored
+    long getSyncTime() {
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.DAY_OF_MONTH, -after);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+
+        long ago = cal.getTimeInMillis();
+        return (ago < 0 ? 0 : ago);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof EntityFolder) {
@@ -122,7 +140,9 @@ public class EntityFolder implements Parcelable {
                     this.synchronize.equals(other.synchronize) &&
                     this.after.equals(other.after) &&
                     (this.state == null ? other.state == null : this.state.equals(other.state)) &&
-                    (this.error == null ? other.error == null : this.error.equals(other.error)));
+                    (this.error == null ? other.error == null : this.error.equals(other.error)) &&
+                    this.messages.equals(other.messages) &&
+                    this.unseen.equals(other.unseen));
         } else
             return false;
     }
@@ -162,6 +182,8 @@ public class EntityFolder implements Parcelable {
         }
         parcel.writeString(state);
         parcel.writeString(error);
+        parcel.writeInt(messages);
+        parcel.writeInt(unseen);
     }
 
     protected EntityFolder(Parcel in) {
@@ -186,6 +208,8 @@ public class EntityFolder implements Parcelable {
         }
         state = in.readString();
         error = in.readString();
+        messages = in.readInt();
+        unseen = in.readInt();
     }
 
     public static final Creator<EntityFolder> CREATOR = new Creator<EntityFolder>() {
@@ -33,6 +33,7 @@ import java.util.Date;
 import java.util.Random;
 
 import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
 
 import androidx.annotation.NonNull;
 import androidx.room.Entity;
@@ -60,10 +61,11 @@ import static androidx.room.ForeignKey.CASCADE;
                 @Index(value = {"replying"}),
                 @Index(value = {"folder", "uid"}, unique = true),
                 @Index(value = {"msgid", "folder"}, unique = true),
-                @Index(value = {"thread"}),
-                @Index(value = {"received"}),
-                @Index(value = {"ui_seen"}),
-                @Index(value = {"ui_hide"})
+                @Index(value = {"folder", "thread"}),
+                @Index(value = {"account", "thread"}),
+                @Index(value = {"folder", "received"}),
+                @Index(value = {"folder", "ui_seen"}),
+                @Index(value = {"received"})
         }
 )
 public class EntityMessage implements Serializable {
@@ -80,13 +82,15 @@ public class EntityMessage implements Serializable {
     public String msgid;
     public String references;
     public String inreplyto;
-    public String thread; // compose = null
+    public Long thread; // see ThreadIndex, null = single message
     public Address[] from;
     public Address[] to;
     public Address[] cc;
     public Address[] bcc;
     public Address[] reply;
     public String subject;
+    public String sender; // formatted for display
+    public String preview; // plain text
     public Long sent; // compose = null
     @NonNull
     public Long received; // compose = stored
@@ -99,6 +103,8 @@ public class EntityMessage implements Serializable {
     @NonNull
     public Boolean ui_hide;
     public String error;
+    @NonNull
+    public Integer attachments = 0; // maintained by database triggers
 
     @Ignore
     String body = null;
@@ -185,11 +191,14 @@ public class EntityMessage implements Serializable {
                     equal(this.bcc, other.bcc) &&
                     equal(this.reply, other.reply) &&
                     (this.subject == null ? other.subject == null : this.subject.equals(other.subject)) &&
+                    (this.sender == null ? other.sender == null : this.sender.equals(other.sender)) &&
+                    (this.preview == null ? other.preview == null : this.preview.equals(other.preview)) &&
                     (this.sent == null ? other.sent == null : this.sent.equals(other.sent)) &&
                     this.received.equals(other.received) &&
                     this.seen.equals(other.seen) &&
                     this.ui_seen.equals(other.ui_seen) &&
                     this.ui_hide.equals(other.ui_hide) &&
+                    this.attachments.equals(other.attachments) &&
                     (this.error == null ? other.error == null : this.error.equals(other.error)));
         }
         return false;
@@ -206,9 +215,22 @@ public class EntityMessage implements Serializable {
             return false;
 
         for (int i = 0; i < a1.length; i++)
-            if (!a1[i].toString().equals(a2[i].toString()))
+            if (!equal(a1[i], a2[i]))
                 return false;
 
         return true;
     }
+
+    // Formatting an address quotes and encodes the personal name, so compare the parts directly
+    private static boolean equal(Address a1, Address a2) {
+        if (a1 instanceof InternetAddress && a2 instanceof InternetAddress) {
+            String p1 = ((InternetAddress) a1).getPersonal();
+            String p2 = ((InternetAddress) a2).getPersonal();
+            String e1 = ((InternetAddress) a1).getAddress();
+            String e2 = ((InternetAddress) a2).getAddress();
+            return (p1 == null ? p2 == null : p1.equals(p2)) &&
+                    (e1 == null ? e2 == null : e1.equals(e2));
+        } else
+            return a1.toString().equals(a2.toString());
+    }
 }
@@ -0,0 +1,57 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+// Summary of the messages of a thread in a folder, maintained by database triggers, see DB.createTriggers
+
+@Entity(
+        tableName = EntityThread.TABLE_NAME,
+        foreignKeys = {
+        },
+        indices = {
+                @Index(value = {"folder", "thread"}),
+                @Index(value = {"folder", "received", "message"}),
+                @Index(value = {"received", "message"}),
+                @Index(value = {"thread"})
+        }
+)
+public class EntityThread {
+    static final String TABLE_NAME = "thread";
+
+    @PrimaryKey(autoGenerate = true)
+    public Long id;
+    public Long account;
+    @NonNull
+    public Long folder;
+    public Long thread; // null = single message
+    @NonNull
+    public Long message; // latest visible message, else latest hidden message
+    @NonNull
+    public Long received;
+    @NonNull
+    public Integer count; // visible messages
+    @NonNull
+    public Integer unseen; // visible unseen messages
+}
@@ -33,6 +33,7 @@ import android.widget.Toast;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Date;
 
 import javax.mail.Address;
@@ -98,6 +99,8 @@ public class FragmentAbout extends FragmentEx {
                             draft.account = drafts.account;
                             draft.folder = drafts.id;
                             draft.msgid = EntityMessage.generateMessageId();
+                            draft.thread = new ThreadIndex(db.getOpenHelper().getWritableDatabase())
+                                    .thread(draft.account, draft.msgid, new ArrayList<String>());
                             draft.to = new Address[]{Helper.myAddress()};
                             draft.subject = context.getString(R.string.app_name) + " debug info";
                             draft.received = new Date().getTime();
@@ -584,6 +584,7 @@ public class FragmentCompose extends FragmentEx {
         args.putLong("id", working);
         args.putParcelable("uri", data.getData());
 
+        // Adding an attachment changes the draft, so it needs to complete before the draft is saved or sent
         new SimpleTask<Void>() {
             @Override
             protected Void onLoad(Context context, Bundle args) throws IOException {
@@ -772,6 +773,8 @@ public class FragmentCompose extends FragmentEx {
                 draft.folder = drafts.id;
                 draft.msgid = EntityMessage.generateMessageId(); // for multiple appends
 
+                List<String> refs = new ArrayList<>();
+
                 if (ref == null) {
                     try {
                         String to = args.getString("to");
@@ -800,7 +803,9 @@ public class FragmentCompose extends FragmentEx {
                         body = "<pre>" + body.replaceAll("\\r?\\n", "<br />") + "</pre>";
 
                 } else {
-                    draft.thread = ref.thread;
+                    refs = ThreadIndex.getReferences(ref.references, ref.inreplyto);
+                    if (!TextUtils.isEmpty(ref.msgid))
+                        refs.add(ref.msgid);
 
                     if ("reply".equals(action) || "reply_all".equals(action)) {
                         draft.replying = ref.id;
@@ -833,6 +838,11 @@ public class FragmentCompose extends FragmentEx {
                     }
                 }
 
+                // Replies to the sent message will be threaded with it
+                draft.thread = new ThreadIndex(db.getOpenHelper().getWritableDatabase())
+                        .thread(account, draft.msgid, refs);
+                draft.sender = MessageHelper.getSender(EntityFolder.DRAFTS, draft.from, draft.to);
+                draft.preview = HtmlHelper.getPreview(HtmlHelper.getText(body));
                 draft.received = new Date().getTime();
                 draft.seen = false;
                 draft.ui_seen = false;
@@ -875,7 +885,7 @@ public class FragmentCompose extends FragmentEx {
             Bundle a = new Bundle();
             a.putLong("id", draft.id);
 
-            new SimpleTask<Spanned>() {
+            new SimpleTask<Spanned>(SimpleTask.LANE_READ) {
                 @Override
                 protected Spanned onLoad(Context context, Bundle args) throws Throwable {
                     String body = EntityMessage.read(context, args.getLong("id"));
@@ -1043,6 +1053,9 @@ public class FragmentCompose extends FragmentEx {
                 else
                     pbody = encrypted;
 
+                draft.sender = MessageHelper.getSender(EntityFolder.DRAFTS, afrom, ato);
+                draft.preview = (encrypted == null ? HtmlHelper.getPreview(HtmlHelper.getText(pbody)) : null);
+
                 // Execute action
                 if (action == R.id.action_trash) {
                     draft.ui_seen = true;
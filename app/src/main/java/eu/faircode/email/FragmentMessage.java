@@ -25,12 +25,14 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LevelListDrawable;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.Editable;
 import android.text.Html;
@@ -39,6 +41,7 @@ import android.text.Spannable;
 import android.text.Spanned;
 import android.text.TextUtils;
 import android.text.method.LinkMovementMethod;
+import android.text.style.ImageSpan;
 import android.text.style.URLSpan;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -64,12 +67,7 @@ import org.xml.sax.XMLReader;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
 import java.text.Collator;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -77,8 +75,14 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.internet.InternetAddress;
 
@@ -133,8 +137,12 @@ public class FragmentMessage extends FragmentEx {
 
     private boolean debug;
     private DateFormat df = SimpleDateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+    private Handler handler = new Handler();
+    private Map<ImageSpan, Future<?>> futures = new HashMap<>();
+    private boolean relayout = false;
 
-    private static final long CACHE_IMAGE_DURATION = 3 * 24 * 3600 * 1000L;
+    private static final int IMAGE_FETCH_THREADS = 4;
+    private static ExecutorService executor = Executors.newFixedThreadPool(IMAGE_FETCH_THREADS);
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -152,6 +160,9 @@ public class FragmentMessage extends FragmentEx {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        for (Future<?> future : futures.values())
+            future.cancel(true);
+        futures.clear();
         if (openPgpConnection != null) {
             openPgpConnection.unbindFromService();
             openPgpConnection = null;
@@ -404,90 +415,38 @@ public class FragmentMessage extends FragmentEx {
             args.putLong("id", message.id);
             args.putBoolean("has_images", false);
             args.putBoolean("show_images", false);
+            args.putLong("start", SystemClock.elapsedRealtime());
 
             pbBody.setVisibility(View.VISIBLE);
-            final SimpleTask<Spanned> bodyTask = new SimpleTask<Spanned>() {
+            final SimpleTask<Body> bodyTask = new SimpleTask<Body>(SimpleTask.LANE_READ) {
                 @Override
-                protected Spanned onLoad(final Context context, final Bundle args) throws Throwable {
-                    final long id = args.getLong("id");
+                protected Body onLoad(final Context context, final Bundle args) throws Throwable {
                     final boolean show_images = args.getBoolean("show_images");
-                    String body = (decrypted == null ? message.read(context) : decrypted);
+
+                    // The message is changed in the foreground only
+                    Body result = new Body();
+                    if (message.body != null)
+                        result.html = message.body;
+                    else if (message.virtual)
+                        result.html = SearchDataSource.getBody(context, message);
+                    else
+                        result.html = EntityMessage.read(context, message.id);
+                    String body = (decrypted == null ? result.html : decrypted);
                     args.putInt("size", body.length());
 
-                    return Html.fromHtml(HtmlHelper.sanitize(getContext(), body, false), new Html.ImageGetter() {
+                    result.text = Html.fromHtml(HtmlHelper.sanitize(getContext(), body, false), new Html.ImageGetter() {
                         @Override
                         public Drawable getDrawable(String source) {
                             float scale = context.getResources().getDisplayMetrics().density;
                             int px = (int) (24 * scale + 0.5f);
 
                             if (show_images) {
-                                // Get cache folder
-                                File dir = new File(context.getCacheDir(), "images");
-                                dir.mkdir();
-
-                                // Cleanup cache
-                                long now = new Date().getTime();
-                                File[] images = dir.listFiles();
-                                if (images != null)
-                                    for (File image : images)
-                                        if (image.isFile() && image.lastModified() + CACHE_IMAGE_DURATION < now) {
-                                            Log.i(Helper.TAG, "Deleting from image cache " + image.getName());
-                                            image.delete();
-                                        }
-
-                                // Create unique file name
-                                File file = new File(dir, id + "_" + source.hashCode());
-
-                                InputStream is = null;
-                                FileOutputStream os = null;
-                                try {
-                                    // Get input stream
-                                    if (file.exists()) {
-                                        Log.i(Helper.TAG, "Using cached " + file);
-                                        is = new FileInputStream(file);
-                                    } else {
-                                        Log.i(Helper.TAG, "Downloading " + source);
-                                        is = new URL(source).openStream();
-                                    }
-
-                                    // Decode image from stream
-                                    Bitmap bm = BitmapFactory.decodeStream(is);
-                                    if (bm == null)
-                                        throw new IllegalArgumentException();
-
-                                    // Cache bitmap
-                                    if (!file.exists()) {
-                                        os = new FileOutputStream(file);
-                                        bm.compress(Bitmap.CompressFormat.PNG, 100, os);
-                                    }
-
-                                    // Create drawable from bitmap
-                                    Drawable d = new BitmapDrawable(context.getResources(), bm);
-                                    d.setBounds(0, 0, bm.getWidth(), bm.getHeight());
-                                    return d;
-                                } catch (Throwable ex) {
-                                    // Show warning icon
-                                    Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
-                                    Drawable d = context.getResources().getDrawable(R.drawable.baseline_warning_24, context.getTheme());
-                                    d.setBounds(0, 0, px, px);
-                                    return d;
-                                } finally {
-                                    // Close streams
-                                    if (is != null) {
-                                        try {
-                                            is.close();
-                                        } catch (IOException e) {
-                                            Log.w(Helper.TAG, e + "\n" + Log.getStackTraceString(e));
-                                        }
-                                    }
-                                    if (os != null) {
-                                        try {
-                                            os.close();
-                                        } catch (IOException e) {
-                                            Log.w(Helper.TAG, e + "\n" + Log.getStackTraceString(e));
-                                        }
-                                    }
-                                }
+                                // Show placeholder icon, the image is fetched after the text has been rendered
+                                Drawable p = context.getResources().getDrawable(R.drawable.baseline_image_24, context.getTheme());
+                                LevelListDrawable d = new LevelListDrawable();
+                                d.addLevel(0, 0, p);
+                                d.setBounds(0, 0, px, px);
+                                return d;
                             } else {
                                 // Show placeholder icon
                                 args.putBoolean("has_images", true);
@@ -502,15 +461,21 @@ public class FragmentMessage extends FragmentEx {
                             Log.i(Helper.TAG, "HTML tag=" + tag + " opening=" + opening);
                         }
                     });
+                    return result;
                 }
 
                 @Override
-                protected void onLoaded(Bundle args, Spanned body) {
+                protected void onLoaded(Bundle args, Body result) {
                     boolean has_images = args.getBoolean("has_images");
                     boolean show_images = args.getBoolean("show_images");
+                    message.body = result.html;
+                    Spanned body = result.text;
                     tvSize.setText(Helper.humanReadableByteCount(args.getInt("size"), false));
                     tvBody.setText(body);
                     tvBody.setTag(true);
+                    Log.i(Helper.TAG, "Rendered text after " + (SystemClock.elapsedRealtime() - args.getLong("start")) + " ms");
+                    if (show_images)
+                        fetchImages(body, args.getLong("start"));
                     btnImages.setVisibility(has_images && !show_images ? View.VISIBLE : View.GONE);
                     grpMessage.setVisibility(View.VISIBLE);
                     fab.setVisibility(free ? View.GONE : View.VISIBLE);
@@ -525,6 +490,7 @@ public class FragmentMessage extends FragmentEx {
                 public void onClick(View v) {
                     v.setEnabled(false);
                     args.putBoolean("show_images", true);
+                    args.putLong("start", SystemClock.elapsedRealtime());
                     bodyTask.load(FragmentMessage.this, args);
                 }
             });
@@ -622,6 +588,70 @@ public class FragmentMessage extends FragmentEx {
         }
     }
 
+    private void fetchImages(Spanned body, final long start) {
+        final Context context = getContext().getApplicationContext();
+        final int width = context.getResources().getDisplayMetrics().widthPixels;
+        float scale = context.getResources().getDisplayMetrics().density;
+        final int px = (int) (24 * scale + 0.5f);
+
+        final ImageSpan[] spans = body.getSpans(0, body.length(), ImageSpan.class);
+        final AtomicInteger pending = new AtomicInteger(spans.length);
+        Log.i(Helper.TAG, "Fetching images=" + spans.length);
+
+        for (final ImageSpan span : spans) {
+            final String source = span.getSource();
+            futures.put(span, executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Drawable image;
+                    try {
+                        // Decode image downsampled to the display width
+                        Bitmap bm = ImageHelper.getBitmap(context, source, width);
+                        image = new BitmapDrawable(context.getResources(), bm);
+                        image.setBounds(0, 0, bm.getWidth(), bm.getHeight());
+                    } catch (Throwable ex) {
+                        // Show warning icon
+                        Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+                        image = context.getResources().getDrawable(R.drawable.baseline_warning_24, context.getTheme());
+                        image.setBounds(0, 0, px, px);
+                    }
+
+                    final Drawable d = image;
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            futures.remove(span);
+                            if (getView() == null)
+                                return;
+
+                            // Swap placeholder for image
+                            LevelListDrawable placeholder = (LevelListDrawable) span.getDrawable();
+                            placeholder.addLevel(1, 1, d);
+                            placeholder.setBounds(d.getBounds());
+                            placeholder.setLevel(1);
+
+                            // The size of the image changed, lay out the text once per frame for all arrived images
+                            if (!relayout) {
+                                relayout = true;
+                                tvBody.postOnAnimation(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        relayout = false;
+                                        if (getView() != null)
+                                            tvBody.setText(tvBody.getText());
+                                    }
+                                });
+                            }
+
+                            if (pending.decrementAndGet() == 0)
+                                Log.i(Helper.TAG, "Rendered images after " + (SystemClock.elapsedRealtime() - start) + " ms");
+                        }
+                    });
+                }
+            }));
+        }
+    }
+
     private void setSeen() {
         int typeface = (message.ui_seen ? Typeface.NORMAL : Typeface.BOLD);
         tvFrom.setTypeface(null, typeface);
@@ -723,7 +753,7 @@ public class FragmentMessage extends FragmentEx {
                     db.beginTransaction();
 
                     EntityMessage message = db.message().getMessage(id);
-                    for (EntityMessage tmessage : db.message().getMessageByThread(message.account, message.thread)) {
+                    for (EntityMessage tmessage : db.message().getMessageByThread(message.account, message.id, message.thread)) {
                         db.message().setMessageUiSeen(tmessage.id, !message.ui_seen);
                         EntityOperation.queue(db, tmessage, EntityOperation.SEEN, !tmessage.ui_seen);
                     }
@@ -1210,4 +1240,9 @@ public class FragmentMessage extends FragmentEx {
                 .putExtra("action", "reply")
                 .putExtra("reference", message.id));
     }
+
+    private static class Body {
+        String html;
+        Spanned text;
+    }
 }
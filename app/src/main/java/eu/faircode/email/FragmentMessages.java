@@ -260,6 +260,13 @@ public class FragmentMessages extends FragmentEx {
         // Observe folder/messages/search
         if (TextUtils.isEmpty(search)) {
             boolean debug = prefs.getBoolean("debug", false);
+
+            // Keyed pages cannot tell the position of the first message, so there are no placeholders
+            PagedList.Config keyed = new PagedList.Config.Builder()
+                    .setEnablePlaceholders(false)
+                    .setPageSize(MESSAGES_PAGE_SIZE)
+                    .build();
+
             if (thread < 0)
                 if (folder < 0) {
                     db.folder().liveUnified().observe(getViewLifecycleOwner(), new Observer<List<TupleFolderEx>>() {
@@ -277,7 +284,8 @@ public class FragmentMessages extends FragmentEx {
                         }
                     });
 
-                    messages = new LivePagedListBuilder<>(db.message().pagedUnifiedInbox(debug), MESSAGES_PAGE_SIZE).build();
+                    messages = new LivePagedListBuilder<>(
+                            new MessageDataSource.Factory(getContext(), -1, debug), keyed).build();
                 } else {
                     db.folder().liveFolderEx(folder).observe(getViewLifecycleOwner(), new Observer<TupleFolderEx>() {
                         @Override
@@ -294,7 +302,8 @@ public class FragmentMessages extends FragmentEx {
                         }
                     });
 
-                    messages = new LivePagedListBuilder<>(db.message().pagedFolder(folder, debug), MESSAGES_PAGE_SIZE).build();
+                    messages = new LivePagedListBuilder<>(
+                            new MessageDataSource.Factory(getContext(), folder, debug), keyed).build();
                 }
             else {
                 setSubtitle(R.string.title_folder_thread);
@@ -310,6 +319,7 @@ public class FragmentMessages extends FragmentEx {
             if (sds == null)
                 sds = new SearchDataSource(getContext(), this, folder, search);
 
+            // Local results are followed by server results, so the number of results is not known in advance
             messages = new LivePagedListBuilder<>(
                     new DataSource.Factory<Integer, TupleMessageEx>() {
                         @Override
@@ -318,7 +328,7 @@ public class FragmentMessages extends FragmentEx {
                         }
                     },
                     new PagedList.Config.Builder()
-                            .setEnablePlaceholders(true)
+                            .setEnablePlaceholders(false)
                             .setInitialLoadSizeHint(SEARCH_PAGE_SIZE)
                             .setPageSize(SEARCH_PAGE_SIZE)
                             .build()
@@ -435,7 +445,7 @@ public class FragmentMessages extends FragmentEx {
 
     @Override
     public void onPrepareOptionsMenu(Menu menu) {
-        menu.findItem(R.id.menu_search).setVisible(folder >= 0 && search == null);
+        menu.findItem(R.id.menu_search).setVisible(thread < 0 && search == null);
         menu.findItem(R.id.menu_folders).setVisible(primary >= 0);
         super.onPrepareOptionsMenu(menu);
     }
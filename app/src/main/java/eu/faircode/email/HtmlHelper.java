@@ -31,41 +31,45 @@ import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
 import org.jsoup.nodes.TextNode;
+import org.jsoup.safety.Cleaner;
 import org.jsoup.safety.Whitelist;
 import org.jsoup.select.NodeTraversor;
 import org.jsoup.select.NodeVisitor;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class HtmlHelper implements NodeVisitor {
-    private Context context;
     private String newline;
-    private List<String> refs = new ArrayList<>();
+    private String titleLink;
+    private String titleImage;
+    private Map<String, Integer> refs = new LinkedHashMap<>();
     private StringBuilder sb = new StringBuilder();
-    private Pattern pattern = Pattern.compile("([http|https]+://[\\w\\S(\\.|:|/)]+)");
+
+    private static final int PREVIEW_SIZE = 200; // characters
+    private static final Pattern PATTERN_LINK = Pattern.compile("([http|https]+://[\\w\\S(\\.|:|/)]+)");
 
     private HtmlHelper(Context context, boolean reply) {
-        this.context = context;
         this.newline = (reply ? "<br>> " : "<br>");
+        this.titleLink = context.getString(R.string.title_link);
+        this.titleImage = context.getString(R.string.title_image);
     }
 
     public void head(Node node, int depth) {
         String name = node.nodeName();
         if (node instanceof TextNode) {
-            String text = ((TextNode) node).text();
-            text = Html.escapeHtml(text);
-            Matcher matcher = pattern.matcher(text);
+            String text = Html.escapeHtml(((TextNode) node).text());
+            int start = 0;
+            Matcher matcher = PATTERN_LINK.matcher(text);
             while (matcher.find()) {
                 String ref = matcher.group();
-                if (!refs.contains(ref))
-                    refs.add(ref);
-                String alt = context.getString(R.string.title_link);
-                text = text.replace(ref, String.format("<a href=\"%s\">%s [%d]</a>", ref, alt, refs.size()));
+                sb.append(text, start, matcher.start());
+                appendLink(ref, titleLink, getIndex(ref));
+                start = matcher.end();
             }
-            sb.append(text);
+            sb.append(text, start, text.length());
         } else if (name.equals("li"))
             sb.append(newline).append(" * ");
         else if (name.equals("dt"))
@@ -81,35 +85,43 @@ public class HtmlHelper implements NodeVisitor {
         else if (name.equals("a")) {
             String ref = node.absUrl("href");
             if (!TextUtils.isEmpty(ref)) {
-                if (!refs.contains(ref))
-                    refs.add(ref);
                 String alt = node.attr("alt");
-                if (TextUtils.isEmpty(alt))
-                    alt = context.getString(R.string.title_link);
-                alt = Html.escapeHtml(alt);
-                sb.append(" ").append(String.format("<a href=\"%s\">%s [%d]</a>", ref, alt, refs.size()));
+                alt = Html.escapeHtml(TextUtils.isEmpty(alt) ? titleLink : alt);
+                sb.append(" ");
+                appendLink(ref, alt, getIndex(ref));
             }
         } else if (name.equals("img")) {
             String ref = node.absUrl("src");
             if (!TextUtils.isEmpty(ref)) {
-                if (!refs.contains(ref))
-                    refs.add(ref);
                 String alt = node.attr("alt");
-                if (TextUtils.isEmpty(alt))
-                    alt = context.getString(R.string.title_image);
-                alt = Html.escapeHtml(alt);
-                sb.append(" ").append(String.format("<a href=\"%s\">%s [%d]</a>", ref, alt, refs.size()));
-                sb.append("<img src=\"" + ref + "\" alt=\"" + alt + "\">");
+                alt = Html.escapeHtml(TextUtils.isEmpty(alt) ? titleImage : alt);
+                sb.append(" ");
+                appendLink(ref, alt, getIndex(ref));
+                sb.append("<img src=\"").append(ref).append("\" alt=\"").append(alt).append("\">");
             }
         }
     }
 
+    private int getIndex(String ref) {
+        Integer index = refs.get(ref);
+        if (index == null) {
+            index = refs.size() + 1;
+            refs.put(ref, index);
+        }
+        return index;
+    }
+
+    private void appendLink(String ref, String alt, int index) {
+        sb.append("<a href=\"").append(ref).append("\">")
+                .append(alt).append(" [").append(index).append("]</a>");
+    }
+
     @Override
     public String toString() {
         if (refs.size() > 0)
             sb.append(newline).append(newline);
-        for (int i = 0; i < refs.size(); i++)
-            sb.append(String.format("[%d] %s ", i + 1, refs.get(i))).append(newline);
+        for (Map.Entry<String, Integer> ref : refs.entrySet())
+            sb.append('[').append(ref.getValue()).append("] ").append(ref.getKey()).append(' ').append(newline);
         return sb.toString();
     }
 
@@ -122,10 +134,24 @@ public class HtmlHelper implements NodeVisitor {
             NodeTraversor.traverse(visitor, document.body());
             return visitor.toString();
         } else {
-            Document document = Jsoup.parse(Jsoup.clean(html, Whitelist.relaxed()));
+            // Parse once, clean the parsed tree and serialize once
+            Document dirty = Jsoup.parseBodyFragment(html);
+            Document document = new Cleaner(Whitelist.relaxed()).clean(dirty);
             for (Element tr : document.select("tr"))
                 tr.after("<br>");
             return document.body().html();
         }
     }
+
+    static String getText(String html) {
+        if (html == null)
+            return null;
+        return Jsoup.parse(html).body().text();
+    }
+
+    static String getPreview(String text) {
+        if (text == null)
+            return null;
+        return (text.length() > PREVIEW_SIZE ? text.substring(0, PREVIEW_SIZE) : text);
+    }
 }
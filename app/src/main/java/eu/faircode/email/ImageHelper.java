@@ -0,0 +1,165 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+
+public class ImageHelper {
+    private static long lastCleanup = 0;
+
+    private static final long CACHE_IMAGE_DURATION = 3 * 24 * 3600 * 1000L; // ms
+    private static final long CACHE_IMAGE_SIZE = 20 * 1024 * 1024L; // bytes
+    private static final long CACHE_CLEANUP_INTERVAL = 3600 * 1000L; // ms
+    private static final int DOWNLOAD_BUFFER_SIZE = 8192; // bytes
+
+    // Decoded bitmaps, limited to 1/8 of the available heap
+    private static final LruCache<String, Bitmap> cache = new LruCache<String, Bitmap>(
+            (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE)) {
+        @Override
+        protected int sizeOf(String key, Bitmap bm) {
+            return bm.getByteCount();
+        }
+    };
+
+    static Bitmap getBitmap(Context context, String source, int width) throws IOException, NoSuchAlgorithmException {
+        String key = width + ":" + source;
+        Bitmap bm = cache.get(key);
+        if (bm != null) {
+            Log.i(Helper.TAG, "Using memory cached " + source);
+            return bm;
+        }
+
+        File file = getFile(context, source);
+        if (file.exists()) {
+            Log.i(Helper.TAG, "Using cached " + file);
+            file.setLastModified(new Date().getTime());
+        } else {
+            Log.i(Helper.TAG, "Downloading " + source);
+            download(source, file);
+        }
+
+        bm = decode(file, width);
+        if (bm == null) {
+            file.delete();
+            throw new IllegalArgumentException(source);
+        }
+
+        cache.put(key, bm);
+        return bm;
+    }
+
+    private static File getFile(Context context, String source) throws NoSuchAlgorithmException {
+        File dir = new File(context.getCacheDir(), "images");
+        dir.mkdir();
+        return new File(dir, Helper.sha256(source));
+    }
+
+    private static void download(String source, File file) throws IOException {
+        // Store the original bytes, write to a unique temporary file to never expose partial images,
+        // also not when the same image is downloaded concurrently
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            InputStream is = new URL(source).openStream();
+            try {
+                OutputStream os = new FileOutputStream(tmp);
+                try {
+                    byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+                    for (int len = is.read(buffer); len != -1; len = is.read(buffer))
+                        os.write(buffer, 0, len);
+                } finally {
+                    os.close();
+                }
+            } finally {
+                is.close();
+            }
+
+            if (!tmp.renameTo(file))
+                throw new IOException("Could not store " + file);
+        } finally {
+            if (tmp.exists())
+                tmp.delete();
+        }
+    }
+
+    private static Bitmap decode(File file, int width) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        // Downsample by powers of two to about the requested width
+        int scale = 1;
+        while (width > 0 && options.outWidth / (scale * 2) >= width)
+            scale *= 2;
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = scale;
+        Log.i(Helper.TAG, "Decoding " + file.getName() + " scale=" + scale);
+        return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    }
+
+    static void cleanup(Context context) {
+        synchronized (ImageHelper.class) {
+            long now = new Date().getTime();
+            if (lastCleanup + CACHE_CLEANUP_INTERVAL > now)
+                return;
+            lastCleanup = now;
+        }
+
+        File[] images = new File(context.getCacheDir(), "images").listFiles();
+        if (images == null)
+            return;
+
+        // Most recently used first
+        Arrays.sort(images, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f2.lastModified(), f1.lastModified());
+            }
+        });
+
+        long now = new Date().getTime();
+        long size = 0;
+        for (File image : images)
+            if (image.isFile()) {
+                size += image.length();
+                if (image.lastModified() + CACHE_IMAGE_DURATION < now || size > CACHE_IMAGE_SIZE) {
+                    Log.i(Helper.TAG, "Deleting from image cache " + image.getName());
+                    image.delete();
+                }
+            }
+    }
+}
@@ -0,0 +1,161 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.paging.DataSource;
+import androidx.paging.ItemKeyedDataSource;
+import androidx.room.InvalidationTracker;
+
+// Pages of the unified inbox (folder < 0) or of a folder, keyed by (received, message ID),
+// to seek to a page instead of skipping all preceding rows like the positional data source of Room
+public class MessageDataSource extends ItemKeyedDataSource<MessageDataSource.Key, TupleMessageEx> {
+    private DB db;
+    private long folder;
+    private boolean debug;
+
+    private InvalidationTracker.Observer observer;
+
+    static class Key {
+        final long received;
+        final long id;
+
+        Key(long received, long id) {
+            this.received = received;
+            this.id = id;
+        }
+    }
+
+    static class Factory extends DataSource.Factory<Key, TupleMessageEx> {
+        private Context context;
+        private long folder;
+        private boolean debug;
+
+        Factory(Context context, long folder, boolean debug) {
+            this.context = context.getApplicationContext();
+            this.folder = folder;
+            this.debug = debug;
+        }
+
+        @Override
+        public DataSource<Key, TupleMessageEx> create() {
+            return new MessageDataSource(context, folder, debug);
+        }
+    }
+
+    private MessageDataSource(Context context, long folder, boolean debug) {
+        this.db = DB.getInstance(context);
+        this.folder = folder;
+        this.debug = debug;
+
+        // The tracker holds the data source weakly, so that a data source which is not used anymore can be released
+        final InvalidationTracker tracker = db.getInvalidationTracker();
+        observer = new WeakObserver(tracker, this);
+        tracker.addObserver(observer);
+        addInvalidatedCallback(new InvalidatedCallback() {
+            @Override
+            public void onInvalidated() {
+                tracker.removeObserver(observer);
+            }
+        });
+    }
+
+    @NonNull
+    @Override
+    public Key getKey(@NonNull TupleMessageEx message) {
+        return new Key(message.received, message.id);
+    }
+
+    @Override
+    public void loadInitial(@NonNull LoadInitialParams<Key> params, @NonNull LoadInitialCallback<TupleMessageEx> callback) {
+        long start = SystemClock.elapsedRealtime();
+
+        List<TupleMessageEx> result = new ArrayList<>();
+        Key key = params.requestedInitialKey;
+        if (key == null)
+            result.addAll(after(Long.MAX_VALUE, Long.MAX_VALUE, params.requestedLoadSize));
+        else {
+            // The key is the last accessed message, so include the messages above it, which are likely visible
+            result.addAll(before(key.received, key.id, params.requestedLoadSize / 2));
+            result.addAll(after(key.received, key.id + 1, params.requestedLoadSize));
+        }
+
+        Log.i(Helper.TAG, "MDS initial folder=" + folder + " count=" + result.size() +
+                " " + (SystemClock.elapsedRealtime() - start) + " ms");
+        callback.onResult(result);
+    }
+
+    @Override
+    public void loadAfter(@NonNull LoadParams<Key> params, @NonNull LoadCallback<TupleMessageEx> callback) {
+        callback.onResult(after(params.key.received, params.key.id, params.requestedLoadSize));
+    }
+
+    @Override
+    public void loadBefore(@NonNull LoadParams<Key> params, @NonNull LoadCallback<TupleMessageEx> callback) {
+        callback.onResult(before(params.key.received, params.key.id, params.requestedLoadSize));
+    }
+
+    private List<TupleMessageEx> after(long received, long id, int count) {
+        if (folder < 0)
+            return db.message().pageUnifiedInboxAfter(received, id, count, debug);
+        else
+            return db.message().pageFolderAfter(folder, received, id, count, debug);
+    }
+
+    private List<TupleMessageEx> before(long received, long id, int count) {
+        List<TupleMessageEx> result;
+        if (folder < 0)
+            result = db.message().pageUnifiedInboxBefore(received, id, count, debug);
+        else
+            result = db.message().pageFolderBefore(folder, received, id, count, debug);
+        Collections.reverse(result);
+        return result;
+    }
+
+    private static class WeakObserver extends InvalidationTracker.Observer {
+        private InvalidationTracker tracker;
+        private WeakReference<MessageDataSource> ref;
+
+        WeakObserver(InvalidationTracker tracker, MessageDataSource mds) {
+            super(EntityThread.TABLE_NAME, "message", "account", "folder");
+            this.tracker = tracker;
+            this.ref = new WeakReference<>(mds);
+        }
+
+        @Override
+        public void onInvalidated(@NonNull Set<String> tables) {
+            MessageDataSource mds = ref.get();
+            if (mds == null)
+                tracker.removeObserver(this);
+            else
+                mds.invalidate();
+        }
+    }
+}
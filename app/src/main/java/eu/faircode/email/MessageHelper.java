@@ -31,11 +31,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.activation.DataHandler;
@@ -54,11 +60,19 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
 
 public class MessageHelper {
     private MimeMessage imessage;
     private String raw = null;
 
+    private static final Map<String, Charset> charsets = new HashMap<>();
+
+    private static final int MAX_CHARSETS = 100;
+    private static final int TEXT_BUFFER_SIZE = 8192; // characters
+    private static final int MAX_TEXT_CAPACITY = 1024 * 1024; // characters
+
     static Properties getSessionProperties(Context context, int auth_type) {
         Properties props = new Properties();
 
@@ -219,14 +233,6 @@ public class MessageHelper {
         return imessage.getHeader("In-Reply-To", null);
     }
 
-    String getThreadId(long uid) throws MessagingException {
-        for (String ref : getReferences())
-            if (!TextUtils.isEmpty(ref))
-                return ref;
-        String msgid = getMessageID();
-        return (TextUtils.isEmpty(msgid) ? Long.toString(uid) : msgid);
-    }
-
     Address[] getFrom() throws MessagingException {
         return imessage.getFrom();
     }
@@ -271,6 +277,16 @@ public class MessageHelper {
         return TextUtils.join(", ", formatted);
     }
 
+    // Outgoing messages are listed by recipient
+    static String getSender(String folderType, Address[] from, Address[] to) {
+        if (EntityFolder.DRAFTS.equals(folderType) ||
+                EntityFolder.OUTBOX.equals(folderType) ||
+                EntityFolder.SENT.equals(folderType))
+            return getFormattedAddresses(to, false);
+        else
+            return getFormattedAddresses(from, false);
+    }
+
     String getHtml() throws MessagingException, UnsupportedEncodingException {
         return getHtml(imessage);
     }
@@ -278,10 +294,7 @@ public class MessageHelper {
     private String getHtml(Part part) throws MessagingException, UnsupportedEncodingException {
         if (part.isMimeType("text/*"))
             try {
-                String s = part.getContent().toString();
-                if (part.isMimeType("text/plain"))
-                    s = "<pre>" + s.replaceAll("\\r?\\n", "<br />") + "</pre>";
-                return s;
+                return readText(part, part.isMimeType("text/plain"));
             } catch (UnsupportedEncodingException ex) {
                 throw new UnsupportedEncodingException(part.getContentType());
 /*
@@ -306,15 +319,17 @@ public class MessageHelper {
                 return null;
             }
 
+        // The content of a part of a server message is downloaded on first use,
+        // so the plain text alternative is only read when there is no HTML alternative
         if (part.isMimeType("multipart/alternative")) {
-            String text = null;
+            Part plain = null;
             try {
                 Multipart mp = (Multipart) part.getContent();
                 for (int i = 0; i < mp.getCount(); i++) {
                     Part bp = mp.getBodyPart(i);
                     if (bp.isMimeType("text/plain")) {
-                        if (text == null)
-                            text = getHtml(bp);
+                        if (plain == null)
+                            plain = bp;
                     } else if (bp.isMimeType("text/html")) {
                         String s = getHtml(bp);
                         if (s != null)
@@ -327,7 +342,7 @@ public class MessageHelper {
             } catch (IOException ex) {
                 Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
             }
-            return text;
+            return (plain == null ? null : getHtml(plain));
         }
 
         if (part.isMimeType("multipart/*")) {
@@ -348,28 +363,106 @@ public class MessageHelper {
         return null;
     }
 
-    public List<EntityAttachment> getAttachments() throws IOException, MessagingException {
-        List<EntityAttachment> result = new ArrayList<>();
+    // Decodes the text directly from the part, instead of through the data handler and the content handler of the part
+    // Plain text is converted to HTML while decoding, the same as replacing \r?\n by <br />
+    private static String readText(Part part, boolean plain) throws MessagingException, IOException {
+        CharsetDecoder decoder = getCharset(part).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        Reader reader = new InputStreamReader(part.getInputStream(), decoder);
+        try {
+            int size = part.getSize();
+            StringBuilder sb = new StringBuilder(size > 0 && size < MAX_TEXT_CAPACITY ? size : TEXT_BUFFER_SIZE);
+            if (plain)
+                sb.append("<pre>");
+
+            boolean cr = false;
+            char[] buffer = new char[TEXT_BUFFER_SIZE];
+            for (int len = reader.read(buffer); len != -1; len = reader.read(buffer))
+                if (plain)
+                    for (int i = 0; i < len; i++) {
+                        char c = buffer[i];
+                        if (cr && c != '\n')
+                            sb.append('\r');
+                        cr = (c == '\r');
+                        if (c == '\n')
+                            sb.append("<br />");
+                        else if (!cr)
+                            sb.append(c);
+                    }
+                else
+                    sb.append(buffer, 0, len);
 
-        Object content = imessage.getContent();
-        if (content instanceof String)
-            return result;
+            if (plain) {
+                if (cr)
+                    sb.append('\r');
+                sb.append("</pre>");
+            }
 
-        if (content instanceof Multipart) {
-            Multipart multipart = (Multipart) content;
-            for (int i = 0; i < multipart.getCount(); i++)
-                result.addAll(getAttachments(multipart.getBodyPart(i)));
+            return sb.toString();
+        } finally {
+            reader.close();
         }
+    }
 
+    // Charset lookups query all charset providers, so the results are cached, including unsupported charsets
+    private static Charset getCharset(Part part) throws MessagingException, UnsupportedEncodingException {
+        String name = null;
+        try {
+            name = new ContentType(part.getContentType()).getParameter("charset");
+        } catch (ParseException ex) {
+            Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+        }
+        name = MimeUtility.javaCharset(name == null ? "us-ascii" : name);
+
+        Charset charset;
+        synchronized (charsets) {
+            if (charsets.containsKey(name))
+                charset = charsets.get(name);
+            else {
+                try {
+                    charset = Charset.forName(name);
+                } catch (IllegalArgumentException ex) {
+                    charset = null;
+                }
+                if (charsets.size() >= MAX_CHARSETS)
+                    charsets.clear();
+                charsets.put(name, charset);
+            }
+        }
+
+        if (charset == null)
+            throw new UnsupportedEncodingException(name);
+        return charset;
+    }
+
+    // Attachments are recognized by their headers only, so the content of attachments is not downloaded or decoded
+    // The order is the sequence of the attachments, which is used to download an attachment later
+    public List<EntityAttachment> getAttachments() throws IOException, MessagingException {
+        List<EntityAttachment> result = new ArrayList<>();
+        if (imessage.isMimeType("multipart/*"))
+            getAttachments(imessage, result);
         return result;
     }
 
-    private List<EntityAttachment> getAttachments(BodyPart part) throws
+    private void getAttachments(Part multipart, List<EntityAttachment> result) throws
             IOException, MessagingException {
-        List<EntityAttachment> result = new ArrayList<>();
+        Object content = multipart.getContent();
+        if (!(content instanceof Multipart))
+            return;
+
+        Multipart mp = (Multipart) content;
+        for (int i = 0; i < mp.getCount(); i++) {
+            BodyPart part = mp.getBodyPart(i);
+            if (part.isMimeType("multipart/*")) {
+                getAttachments(part, result);
+                continue;
+            }
+
+            // Embedded messages are not attachments
+            if (part.isMimeType("message/rfc822"))
+                continue;
 
-        Object content = part.getContent();
-        if (content instanceof InputStream || content instanceof String) {
             String disposition;
             try {
                 disposition = part.getDisposition();
@@ -395,13 +488,7 @@ public class MessageHelper {
                     attachment.size = null;
                 result.add(attachment);
             }
-        } else if (content instanceof Multipart) {
-            Multipart multipart = (Multipart) content;
-            for (int i = 0; i < multipart.getCount(); i++)
-                result.addAll(getAttachments(multipart.getBodyPart(i)));
         }
-
-        return result;
     }
 
     String getRaw() throws IOException, MessagingException {
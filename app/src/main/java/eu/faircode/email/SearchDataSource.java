@@ -3,29 +3,55 @@ package eu.faircode.email;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.SparseArray;
 import android.widget.Toast;
 
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.SortTerm;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Properties;
-
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.Address;
 import javax.mail.FetchProfile;
 import javax.mail.Folder;
+import javax.mail.FolderClosedException;
 import javax.mail.Message;
+import javax.mail.MessageRemovedException;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.UIDFolder;
+import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.mail.search.AndTerm;
 import javax.mail.search.BodyTerm;
+import javax.mail.search.ComparisonTerm;
 import javax.mail.search.FromStringTerm;
 import javax.mail.search.OrTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.SearchTerm;
 import javax.mail.search.SubjectTerm;
 
 import androidx.lifecycle.Lifecycle;
@@ -34,21 +60,42 @@ import androidx.lifecycle.LifecycleOwner;
 import androidx.lifecycle.OnLifecycleEvent;
 import androidx.paging.PositionalDataSource;
 
+// Searches one folder, or all synchronized folders of all synchronized accounts in parallel (folder < 0)
+// Local messages are searched first, see SearchIndex, the server is searched only when the local results
+// do not fill the requested page, and only for older messages once all stored messages have been indexed
+// The server results of the folders are merged by received time, reading each folder only as far as needed
+
 public class SearchDataSource extends PositionalDataSource<TupleMessageEx> implements LifecycleObserver {
     private Context context;
     private LifecycleOwner owner;
     private long fid;
     private String search;
 
-    private EntityFolder folder;
-    private EntityAccount account;
-    private IMAPStore istore = null;
-    private IMAPFolder ifolder;
-    private Message[] imessages;
+    private boolean local = false; // all local results found
+    private int locals = 0; // number of local results
+    private boolean searched = false;
+    private Set<String> keys = new HashSet<>(); // of local results
+    private Map<Long, IMAPStore> istores = new HashMap<>(); // by account
+    private List<FolderSearch> searches = new ArrayList<>();
+    private Map<Long, IMAPFolder> ifolders = new ConcurrentHashMap<>(); // by folder, for fetching bodies without locking the search
+    private Set<FolderSearch> open = new LinkedHashSet<>(); // least recently used first
+    private PriorityQueue<FolderSearch> heads = new PriorityQueue<>(11, new Comparator<FolderSearch>() {
+        @Override
+        public int compare(FolderSearch s1, FolderSearch s2) {
+            return -Long.compare(s1.received, s2.received);
+        }
+    });
+    private List<Result> merged = new ArrayList<>(); // server results
+    private int total = 0;
+
+    private SearchCache cache = new SearchCache(Runtime.getRuntime().maxMemory() / CACHE_MEMORY_FRACTION);
 
-    private SparseArray<TupleMessageEx> cache = new SparseArray<>();
+    private static final List<SearchDataSource> instances = new ArrayList<>();
+    private static ExecutorService executor = Executors.newFixedThreadPool(SEARCH_THREADS);
 
-    private static final float MAX_MEMORY_USAGE = 0.6f; // percent
+    private static final int SEARCH_THREADS = 4;
+    private static final int MAX_OPEN_FOLDERS = 4; // besides the folders being searched
+    private static final int CACHE_MEMORY_FRACTION = 16; // of the maximum heap size
 
     SearchDataSource(Context context, LifecycleOwner owner, long folder, String search) {
         Log.i(Helper.TAG, "SDS create");
@@ -59,24 +106,41 @@ public class SearchDataSource extends PositionalDataSource<TupleMessageEx> imple
         this.search = search;
 
         owner.getLifecycle().addObserver(this);
+
+        synchronized (instances) {
+            instances.add(this);
+        }
     }
 
     @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
     public void onDestroyed() {
         Log.i(Helper.TAG, "SDS destroy");
 
+        synchronized (instances) {
+            instances.remove(this);
+        }
+
         new Thread(new Runnable() {
             @Override
             public void run() {
-                try {
-                    if (istore != null)
-                        istore.close();
-                } catch (MessagingException ex) {
-                    Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
-                } finally {
-                    istore = null;
-                    ifolder = null;
-                    imessages = null;
+                synchronized (SearchDataSource.this) {
+                    for (IMAPStore istore : istores.values())
+                        try {
+                            if (istore != null)
+                                istore.close();
+                        } catch (MessagingException ex) {
+                            Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+                        }
+                    istores.clear();
+                    ifolders.clear();
+                    synchronized (open) {
+                        open.clear();
+                    }
+                    searches.clear();
+                    heads.clear();
+                    merged.clear();
+                    keys.clear();
+                    Log.i(Helper.TAG, "SDS cache " + cache);
                     cache.clear();
                 }
             }
@@ -89,8 +153,9 @@ public class SearchDataSource extends PositionalDataSource<TupleMessageEx> imple
     public void loadInitial(LoadInitialParams params, LoadInitialCallback<TupleMessageEx> callback) {
         Log.i(Helper.TAG, "SDS load initial");
         try {
+            // The number of results is unknown until all folders have been searched
             SearchResult result = search(search, params.requestedStartPosition, params.requestedLoadSize);
-            callback.onResult(result.messages, params.requestedStartPosition, result.total);
+            callback.onResult(result.messages, params.requestedStartPosition);
         } catch (Throwable ex) {
             Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
             reportError(ex);
@@ -109,85 +174,78 @@ public class SearchDataSource extends PositionalDataSource<TupleMessageEx> imple
         }
     }
 
-    private SearchResult search(String term, int from, int count) throws MessagingException, UnsupportedEncodingException {
+    private synchronized SearchResult search(String term, int from, int count) throws Throwable {
         Log.i(Helper.TAG, "SDS search from=" + from + " count=" + count);
 
-        if (istore == null) {
-            DB db = DB.getInstance(context);
-            folder = db.folder().getFolder(fid);
-            account = db.account().getAccount(folder.account);
+        SearchResult result = new SearchResult();
+        result.messages = new ArrayList<>();
 
-            // Refresh token
-            if (account.auth_type == Helper.AUTH_TYPE_GMAIL) {
-                account.password = Helper.refreshToken(context, "com.google", account.user, account.password);
-                db.account().setAccountPassword(account.id, account.password);
+        // Pages are requested in order, so all local results are known before the server results are merged
+        if (!local || from < locals) {
+            List<TupleMessageEx> messages = searchLocal(term, from, count);
+            result.messages.addAll(messages);
+            if (!local) {
+                locals = from + messages.size();
+                local = (messages.size() < count);
             }
+        }
 
-            Properties props = MessageHelper.getSessionProperties(context, account.auth_type);
-            props.setProperty("mail.imap.throwsearchexception", "true");
-            Session isession = Session.getInstance(props, null);
-
-            Log.i(Helper.TAG, "SDS connecting account=" + account.name);
-            istore = (IMAPStore) isession.getStore("imaps");
-            istore.connect(account.host, account.port, account.user, account.password);
+        if (!local || result.messages.size() == count)
+            return result;
 
-            Log.i(Helper.TAG, "SDS opening folder=" + folder.name);
-            ifolder = (IMAPFolder) istore.getFolder(folder.name);
-            ifolder.open(Folder.READ_WRITE);
+        // Server results follow the local results
+        int sfrom = Math.max(from, locals) - locals;
+        int scount = count - result.messages.size();
 
-            Log.i(Helper.TAG, "SDS searching term=" + term);
-            imessages = ifolder.search(
-                    new OrTerm(
-                            new FromStringTerm(term),
-                            new OrTerm(
-                                    new SubjectTerm(term),
-                                    new BodyTerm(term))));
-            Log.i(Helper.TAG, "SDS found messages=" + imessages.length);
+        if (!searched && merged.size() < sfrom + scount) {
+            searchFolders(term, scount);
+            searched = true;
         }
 
-        SearchResult result = new SearchResult();
-        result.total = imessages.length;
-        result.messages = new ArrayList<>();
+        // Merge the folder results up to the requested page, skipping messages found locally
+        long start = SystemClock.elapsedRealtime();
+        while (merged.size() < sfrom + scount && !heads.isEmpty()) {
+            FolderSearch s = heads.poll();
+            long uid = s.uids[s.next];
+            Message imessage = s.imessages[s.next];
+            String msgid = new MessageHelper((MimeMessage) imessage).getMessageID();
+            if (keys.contains(s.folder.id + ":" + uid) ||
+                    (msgid != null && keys.contains(s.folder.id + ":" + msgid)))
+                Log.i(Helper.TAG, "SDS skipping local uid=" + uid);
+            else
+                merged.add(new Result(s, imessage, uid));
+            if (s.next(scount))
+                heads.add(s);
+            release(s);
+        }
+        Log.i(Helper.TAG, "SDS merged=" + merged.size() + " " + (SystemClock.elapsedRealtime() - start) + " ms");
 
-        List<Message> selected = new ArrayList<>();
-        int base = imessages.length - 1 - from;
-        for (int i = base; i >= 0 && i >= base - count + 1; i--)
-            selected.add(imessages[i]);
-        Log.i(Helper.TAG, "SDS selected messages=" + selected.size());
-
-        FetchProfile fp = new FetchProfile();
-        fp.add(UIDFolder.FetchProfileItem.UID);
-        fp.add(IMAPFolder.FetchProfileItem.FLAGS);
-        fp.add(FetchProfile.Item.ENVELOPE);
-        fp.add(FetchProfile.Item.CONTENT_INFO);
-        fp.add(IMAPFolder.FetchProfileItem.HEADERS);
-        fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
-        ifolder.fetch(selected.toArray(new Message[0]), fp);
-
-        for (int s = 0; s < selected.size(); s++) {
-            int pos = from + s;
-            if (cache.get(pos) != null) {
-                Log.i(Helper.TAG, "SDS from cache pos=" + pos);
-                result.messages.add(cache.get(pos));
+        for (int pos = sfrom; pos < sfrom + scount && pos < merged.size(); pos++) {
+            TupleMessageEx cached = cache.getEnvelope(pos);
+            if (cached != null) {
+                result.messages.add(cached);
                 continue;
             }
 
-            Message imessage = selected.get(s);
-
-            long uid = ifolder.getUID(imessage);
+            Result r = merged.get(pos);
+            EntityAccount account = r.search.account;
+            EntityFolder folder = r.search.folder;
+            Message imessage = r.imessage;
+            long uid = r.uid;
 
             MessageHelper helper = new MessageHelper((MimeMessage) imessage);
             boolean seen = helper.getSeen();
 
+            // Search results are not stored, so the id only needs to be unique in the list,
+            // equal UIDs of different folders and stored messages should not be mixed up
             TupleMessageEx message = new TupleMessageEx();
-            message.id = uid;
+            message.id = -1L - pos;
             message.account = folder.account;
             message.folder = folder.id;
             message.uid = uid;
             message.msgid = helper.getMessageID();
             message.references = TextUtils.join(" ", helper.getReferences());
             message.inreplyto = helper.getInReplyTo();
-            message.thread = helper.getThreadId(uid);
             message.from = helper.getFrom();
             message.to = helper.getTo();
             message.cc = helper.getCc();
@@ -207,23 +265,227 @@ public class SearchDataSource extends PositionalDataSource<TupleMessageEx> imple
             message.unseen = (seen ? 0 : 1);
             message.attachments = 0;
 
-            message.body = helper.getHtml();
             message.virtual = true;
 
             result.messages.add(message);
-
-            Runtime rt = Runtime.getRuntime();
-            float used = (float) (rt.totalMemory() - rt.freeMemory()) / rt.maxMemory();
-            if (used < MAX_MEMORY_USAGE)
-                cache.put(pos, message);
-            else
-                Log.i(Helper.TAG, "SDS memory used=" + used);
+            cache.putEnvelope(pos, message);
         }
 
-        Log.i(Helper.TAG, "SDS result=" + result.messages.size());
+        Log.i(Helper.TAG, "SDS result=" + result.messages.size() + " cache " + cache);
         return result;
     }
 
+    // The local results are paged by the index query, only their keys are kept, to skip them in the server results
+    private List<TupleMessageEx> searchLocal(String term, int from, int count) {
+        long start = SystemClock.elapsedRealtime();
+
+        DB db = DB.getInstance(context);
+        List<TupleMessageEx> messages = db.message().searchMessages(SearchIndex.getQuery(fid, term, count, from));
+        for (TupleMessageEx message : messages) {
+            if (message.uid != null)
+                keys.add(message.folder + ":" + message.uid);
+            if (message.msgid != null)
+                keys.add(message.folder + ":" + message.msgid);
+        }
+
+        Log.i(Helper.TAG, "SDS local from=" + from + " found=" + messages.size() + " " + (SystemClock.elapsedRealtime() - start) + " ms");
+        return messages;
+    }
+
+    // Connects to the accounts, then searches the folders, each step with bounded parallelism
+    private void searchFolders(final String term, final int count) throws Throwable {
+        long start = SystemClock.elapsedRealtime();
+
+        DB db = DB.getInstance(context);
+        boolean indexed = SearchIndex.isIndexed(context);
+        List<EntityFolder> folders = new ArrayList<>();
+        if (fid < 0) {
+            for (EntityAccount account : db.account().getAccounts(true))
+                folders.addAll(db.folder().getFolders(account.id, true));
+        } else
+            folders.add(db.folder().getFolder(fid));
+
+        List<Callable<Void>> connects = new ArrayList<>();
+        for (EntityFolder folder : folders)
+            if (!istores.containsKey(folder.account)) {
+                final EntityAccount account = db.account().getAccount(folder.account);
+                istores.put(account.id, null);
+                connects.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        IMAPStore istore = connect(context, account);
+                        synchronized (istores) {
+                            istores.put(account.id, istore);
+                        }
+                        return null;
+                    }
+                });
+            }
+        Throwable error = invoke(connects);
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (EntityFolder folder : folders) {
+            IMAPStore istore;
+            synchronized (istores) {
+                istore = istores.get(folder.account);
+            }
+            if (istore == null)
+                continue;
+
+            final FolderSearch s = new FolderSearch();
+            s.account = db.account().getAccount(folder.account);
+            s.folder = folder;
+            s.ifolder = (IMAPFolder) istore.getFolder(folder.name);
+            s.indexed = indexed;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    s.search(term, count);
+                    release(s);
+                    return null;
+                }
+            });
+            searches.add(s);
+            ifolders.put(folder.id, s.ifolder);
+        }
+        Throwable serror = invoke(tasks);
+        if (error == null)
+            error = serror;
+
+        for (FolderSearch s : new ArrayList<>(searches))
+            if (s.uids == null)
+                searches.remove(s);
+            else {
+                total += s.uids.length;
+                if (s.next < s.uids.length)
+                    heads.add(s);
+            }
+
+        Log.i(Helper.TAG, "SDS searched folders=" + searches.size() + "/" + folders.size() +
+                " found=" + total + " " + (SystemClock.elapsedRealtime() - start) + " ms");
+
+        // Report a failure only when nothing could be searched
+        if (searches.size() == 0 && error != null)
+            throw error;
+        if (error != null)
+            reportError(error);
+    }
+
+    // Keeps the most recently used folders with results left to fetch open, for fetching more results and bodies
+    private void release(FolderSearch s) {
+        FolderSearch eldest = null;
+        synchronized (open) {
+            open.remove(s);
+            if (s.fetched < s.uids.length)
+                open.add(s);
+            if (open.size() > MAX_OPEN_FOLDERS) {
+                eldest = open.iterator().next();
+                open.remove(eldest);
+            }
+        }
+
+        if (s.fetched == s.uids.length)
+            s.close();
+        if (eldest != null)
+            eldest.close();
+    }
+
+    private static Throwable invoke(List<Callable<Void>> tasks) throws InterruptedException {
+        Throwable error = null;
+        for (Future<Void> future : executor.invokeAll(tasks))
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                Log.e(Helper.TAG, ex.getCause() + "\n" + Log.getStackTraceString(ex.getCause()));
+                if (error == null)
+                    error = ex.getCause();
+            }
+        return error;
+    }
+
+    private static IMAPStore connect(Context context, EntityAccount account) throws MessagingException {
+        // Refresh token
+        if (account.auth_type == Helper.AUTH_TYPE_GMAIL) {
+            account.password = Helper.refreshToken(context, "com.google", account.user, account.password);
+            DB.getInstance(context).account().setAccountPassword(account.id, account.password);
+        }
+
+        Properties props = MessageHelper.getSessionProperties(context, account.auth_type);
+        props.setProperty("mail.imap.throwsearchexception", "true");
+        Session isession = Session.getInstance(props, null);
+
+        Log.i(Helper.TAG, "SDS connecting account=" + account.name);
+        IMAPStore istore = (IMAPStore) isession.getStore("imaps");
+        istore.connect(account.host, account.port, account.user, account.password);
+        return istore;
+    }
+
+    // Fetches the body of a search result, using the connection of the search if it is still open
+    static String getBody(Context context, TupleMessageEx message) throws MessagingException, IOException {
+        long start = SystemClock.elapsedRealtime();
+
+        // A search can take long, so neither the list of instances nor an instance is locked while fetching
+        List<SearchDataSource> sdss;
+        synchronized (instances) {
+            sdss = new ArrayList<>(instances);
+        }
+
+        IMAPFolder ifolder = null;
+        SearchCache cache = null;
+        for (SearchDataSource sds : sdss) {
+            ifolder = sds.ifolders.get(message.folder);
+            if (ifolder != null) {
+                cache = sds.cache;
+                break;
+            }
+        }
+
+        String body = null;
+        if (cache != null) {
+            body = cache.getBody(message.folder, message.uid);
+            if (body != null)
+                return body;
+        }
+
+        // The folder might be closed by the search at any time
+        if (ifolder != null && ifolder.isOpen())
+            try {
+                body = getBody(ifolder, message.uid);
+            } catch (IllegalStateException ex) {
+                Log.w(Helper.TAG, "SDS folder closed " + ex);
+            } catch (FolderClosedException ex) {
+                Log.w(Helper.TAG, "SDS folder closed " + ex);
+            }
+
+        if (body == null) {
+            DB db = DB.getInstance(context);
+            EntityFolder folder = db.folder().getFolder(message.folder);
+            EntityAccount account = db.account().getAccount(folder.account);
+
+            IMAPStore istore = connect(context, account);
+            try {
+                IMAPFolder f = (IMAPFolder) istore.getFolder(folder.name);
+                f.open(Folder.READ_ONLY);
+                body = getBody(f, message.uid);
+            } finally {
+                istore.close();
+            }
+        }
+
+        if (cache != null)
+            cache.putBody(message.folder, message.uid, body);
+
+        Log.i(Helper.TAG, "SDS fetched body uid=" + message.uid + " " + (SystemClock.elapsedRealtime() - start) + " ms");
+        return body;
+    }
+
+    private static String getBody(IMAPFolder ifolder, long uid) throws MessagingException, IOException {
+        Message imessage = ifolder.getMessageByUID(uid);
+        if (imessage == null)
+            throw new MessageRemovedException();
+        return new MessageHelper((MimeMessage) imessage).getHtml();
+    }
+
     private void reportError(final Throwable ex) {
         new Handler(Looper.getMainLooper()).post(new Runnable() {
             @Override
@@ -233,8 +495,234 @@ public class SearchDataSource extends PositionalDataSource<TupleMessageEx> imple
         });
     }
 
+    // Envelopes and bodies share a memory budget, bodies are evicted first,
+    // because they are larger and fetched again only when a message is opened again
+    private static class SearchCache {
+        private long maxSize;
+        private long size = 0;
+        private int hits = 0;
+        private int misses = 0;
+        private int evictions = 0;
+        private Map<Integer, TupleMessageEx> envelopes = new LinkedHashMap<>(16, 0.75f, true);
+        private Map<String, String> bodies = new LinkedHashMap<>(16, 0.75f, true); // by folder:uid
+
+        SearchCache(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        synchronized TupleMessageEx getEnvelope(int pos) {
+            TupleMessageEx message = envelopes.get(pos);
+            if (message == null)
+                misses++;
+            else
+                hits++;
+            return message;
+        }
+
+        synchronized void putEnvelope(int pos, TupleMessageEx message) {
+            TupleMessageEx prev = envelopes.put(pos, message);
+            if (prev != null)
+                size -= sizeOf(prev);
+            size += sizeOf(message);
+            trim();
+        }
+
+        synchronized String getBody(long folder, long uid) {
+            String body = bodies.get(folder + ":" + uid);
+            if (body == null)
+                misses++;
+            else
+                hits++;
+            return body;
+        }
+
+        synchronized void putBody(long folder, long uid, String body) {
+            String prev = bodies.put(folder + ":" + uid, body);
+            if (prev != null)
+                size -= sizeOf(prev);
+            size += sizeOf(body);
+            trim();
+        }
+
+        synchronized void clear() {
+            envelopes.clear();
+            bodies.clear();
+            size = 0;
+        }
+
+        private void trim() {
+            Iterator<String> b = bodies.values().iterator();
+            while (size > maxSize && b.hasNext()) {
+                size -= sizeOf(b.next());
+                b.remove();
+                evictions++;
+            }
+
+            Iterator<TupleMessageEx> e = envelopes.values().iterator();
+            while (size > maxSize && e.hasNext()) {
+                size -= sizeOf(e.next());
+                e.remove();
+                evictions++;
+            }
+        }
+
+        // Estimates, strings are UTF-16
+        private static long sizeOf(TupleMessageEx message) {
+            return 256 +
+                    sizeOf(message.msgid) + sizeOf(message.references) + sizeOf(message.inreplyto) +
+                    sizeOf(message.subject) +
+                    sizeOf(message.from) + sizeOf(message.to) + sizeOf(message.cc) +
+                    sizeOf(message.bcc) + sizeOf(message.reply);
+        }
+
+        private static long sizeOf(Address[] addresses) {
+            if (addresses == null)
+                return 0;
+            long size = 16;
+            for (Address address : addresses)
+                if (address instanceof InternetAddress)
+                    size += 64 +
+                            sizeOf(((InternetAddress) address).getAddress()) +
+                            sizeOf(((InternetAddress) address).getPersonal());
+                else
+                    size += 64;
+            return size;
+        }
+
+        private static long sizeOf(String s) {
+            return (s == null ? 0 : 40 + 2L * s.length());
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "size=" + size + "/" + maxSize +
+                    " envelopes=" + envelopes.size() + " bodies=" + bodies.size() +
+                    " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+        }
+    }
+
+    private static class FolderSearch {
+        EntityAccount account;
+        EntityFolder folder;
+        IMAPFolder ifolder;
+        boolean indexed;
+        long[] uids; // newest first
+        Message[] imessages; // with fetched envelope, null when not fetched yet or removed in the meantime
+        int fetched = 0; // messages with fetched envelope
+        int next = -1; // next message to merge
+        long received; // of the next message to merge
+
+        void search(String term, int count) throws MessagingException {
+            long start = SystemClock.elapsedRealtime();
+            ifolder.open(Folder.READ_ONLY);
+
+            SearchTerm search = new OrTerm(
+                    new FromStringTerm(term),
+                    new OrTerm(
+                            new SubjectTerm(term),
+                            new BodyTerm(term)));
+
+            // Messages in the synchronization window are stored and searched locally,
+            // once the body text of all stored messages has been indexed
+            if (folder.synchronize && indexed)
+                search = new AndTerm(search, new ReceivedDateTerm(ComparisonTerm.LT, new Date(folder.getSyncTime())));
+
+            // Let the server sort by arrival when it can (RFC 5256), else assume sequence order is arrival order
+            boolean sort = ((IMAPStore) ifolder.getStore()).hasCapability("SORT");
+            Message[] found;
+            if (sort)
+                found = ifolder.getSortedMessages(new SortTerm[]{SortTerm.REVERSE, SortTerm.ARRIVAL}, search);
+            else {
+                found = ifolder.search(search);
+                for (int i = 0; i < found.length / 2; i++) {
+                    Message m = found[i];
+                    found[i] = found[found.length - 1 - i];
+                    found[found.length - 1 - i] = m;
+                }
+            }
+
+            // The messages are remembered by UID, so that the folder can be closed and opened again
+            FetchProfile fp = new FetchProfile();
+            fp.add(UIDFolder.FetchProfileItem.UID);
+            ifolder.fetch(found, fp);
+            uids = new long[found.length];
+            for (int i = 0; i < found.length; i++)
+                uids[i] = ifolder.getUID(found[i]);
+            imessages = new Message[uids.length];
+
+            next(count);
+            Log.i(Helper.TAG, "SDS folder=" + folder.name + " found=" + uids.length + " sort=" + sort +
+                    " " + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+
+        // Moves to the next message to merge, fetching envelopes as needed
+        boolean next(int count) throws MessagingException {
+            do {
+                next++;
+                if (next >= uids.length)
+                    return false;
+                if (next >= fetched)
+                    fetch(count);
+            } while (imessages[next] == null);
+            received = imessages[next].getReceivedDate().getTime();
+            return true;
+        }
+
+        // Only what is needed to list the messages is fetched, bodies are fetched when a message is opened
+        private void fetch(int count) throws MessagingException {
+            int n = Math.min(count, uids.length - fetched);
+            if (n <= 0)
+                return;
+
+            long start = SystemClock.elapsedRealtime();
+            if (!ifolder.isOpen())
+                ifolder.open(Folder.READ_ONLY);
+
+            Message[] found = ifolder.getMessagesByUID(Arrays.copyOfRange(uids, fetched, fetched + n));
+            List<Message> existing = new ArrayList<>();
+            for (Message imessage : found)
+                if (imessage != null)
+                    existing.add(imessage);
+
+            FetchProfile fp = new FetchProfile();
+            fp.add(UIDFolder.FetchProfileItem.UID);
+            fp.add(IMAPFolder.FetchProfileItem.FLAGS);
+            fp.add(FetchProfile.Item.ENVELOPE);
+            fp.add("Message-ID");
+            fp.add("References");
+            fp.add("In-Reply-To");
+            fp.add("Reply-To");
+            ifolder.fetch(existing.toArray(new Message[0]), fp);
+
+            System.arraycopy(found, 0, imessages, fetched, n);
+            fetched += n;
+            Log.i(Helper.TAG, "SDS folder=" + folder.name + " fetched envelopes=" + existing.size() + "/" + n +
+                    " " + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+
+        void close() {
+            try {
+                if (ifolder.isOpen())
+                    ifolder.close(false);
+            } catch (MessagingException ex) {
+                Log.w(Helper.TAG, "SDS folder=" + folder.name + " close " + ex);
+            }
+        }
+    }
+
+    private static class Result {
+        FolderSearch search;
+        Message imessage;
+        long uid;
+
+        Result(FolderSearch search, Message imessage, long uid) {
+            this.search = search;
+            this.imessage = imessage;
+            this.uid = uid;
+        }
+    }
+
     private class SearchResult {
-        int total;
         List<TupleMessageEx> messages;
     }
 }
@@ -0,0 +1,228 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+
+// Full text index of the subject, addresses and body text of synchronized messages
+// The document ID of an index row is the message ID
+// Room cannot declare virtual tables, so the index table is created and queried with plain SQL
+// The body text of messages indexed by the migration to version 13 is added afterwards, see backfill,
+// rows without body text are recognized by a null text, the backfill stores an empty text for messages without text
+
+public class SearchIndex {
+    static final String TABLE_NAME = "message_fts";
+
+    private static final int MAX_TEXT_SIZE = 64 * 1024; // characters
+    private static final int BACKFILL_BATCH_SIZE = 100; // messages
+
+    private static final AtomicBoolean backfilling = new AtomicBoolean(false);
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    static final String PREF_INDEXED = "search_index_text"; // true when all body text has been indexed
+
+    static void create(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `" + TABLE_NAME + "` USING fts4(`subject`, `address`, `text`)");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `message_fts_delete` AFTER DELETE ON `message`" +
+                " BEGIN DELETE FROM `" + TABLE_NAME + "` WHERE docid = OLD.id; END");
+    }
+
+    static SupportSQLiteStatement compileInsert(SupportSQLiteDatabase db) {
+        return db.compileStatement("INSERT INTO `" + TABLE_NAME + "` (docid, `subject`, `address`, `text`) VALUES (?, ?, ?, ?)");
+    }
+
+    static void insert(SupportSQLiteStatement statement, EntityMessage message, String text) {
+        statement.bindLong(1, message.id);
+        bindString(statement, 2, message.subject);
+        bindString(statement, 3, getAddresses(message.from, message.to, message.cc));
+        bindString(statement, 4, getText(text));
+        statement.executeInsert();
+    }
+
+    private static String getText(String text) {
+        if (text == null)
+            return null;
+        return (text.length() <= MAX_TEXT_SIZE ? text : text.substring(0, MAX_TEXT_SIZE));
+    }
+
+    static boolean isIndexed(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(PREF_INDEXED, false);
+    }
+
+    // Starts adding the body text of messages indexed without it in the background, until all messages have been indexed
+    static void backfill(Context context) {
+        if (isIndexed(context) || !backfilling.compareAndSet(false, true))
+            return;
+
+        final Context appContext = context.getApplicationContext();
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+                try {
+                    backfillAll(appContext);
+                } catch (Throwable ex) {
+                    Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+                } finally {
+                    backfilling.set(false);
+                }
+            }
+        });
+    }
+
+    // The index is walked once in document ID order, because the text column cannot be queried by index
+    private static void backfillAll(Context context) {
+        long start = SystemClock.elapsedRealtime();
+        SupportSQLiteDatabase db = DB.getInstance(context).getOpenHelper().getWritableDatabase();
+
+        long last = 0;
+        int count = 0;
+        while (true) {
+            List<Long> ids = new ArrayList<>();
+            Cursor cursor = db.query(
+                    "SELECT docid FROM `" + TABLE_NAME + "` WHERE docid > ? AND `text` IS NULL" +
+                            " ORDER BY docid LIMIT " + BACKFILL_BATCH_SIZE,
+                    new Object[]{last});
+            try {
+                while (cursor.moveToNext())
+                    ids.add(cursor.getLong(0));
+            } finally {
+                cursor.close();
+            }
+
+            if (ids.size() == 0)
+                break;
+            last = ids.get(ids.size() - 1);
+
+            // Reading and parsing the bodies is done outside of the transaction
+            List<String> texts = new ArrayList<>();
+            for (Long id : ids)
+                try {
+                    String text = getText(HtmlHelper.getText(EntityMessage.read(context, id)));
+                    texts.add(text == null ? "" : text);
+                } catch (FileNotFoundException ex) {
+                    texts.add("");
+                } catch (IOException ex) {
+                    Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+                    texts.add("");
+                }
+
+            try {
+                db.beginTransaction();
+                SupportSQLiteStatement update = db.compileStatement(
+                        "UPDATE `" + TABLE_NAME + "` SET `text` = ? WHERE docid = ?");
+                for (int i = 0; i < ids.size(); i++) {
+                    update.bindString(1, texts.get(i));
+                    update.bindLong(2, ids.get(i));
+                    update.executeUpdateDelete();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            count += ids.size();
+        }
+
+        PreferenceManager.getDefaultSharedPreferences(context).edit().putBoolean(PREF_INDEXED, true).apply();
+        Log.i(Helper.TAG, "Search index backfilled=" + count + " " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    private static void bindString(SupportSQLiteStatement statement, int index, String value) {
+        if (value == null)
+            statement.bindNull(index);
+        else
+            statement.bindString(index, value);
+    }
+
+    static String getAddresses(Address[]... addresses) {
+        StringBuilder sb = new StringBuilder();
+        for (Address[] list : addresses)
+            if (list != null)
+                for (Address address : list) {
+                    if (sb.length() > 0)
+                        sb.append(' ');
+                    if (address instanceof InternetAddress) {
+                        String personal = ((InternetAddress) address).getPersonal();
+                        if (personal != null)
+                            sb.append(personal).append(' ');
+                        sb.append(((InternetAddress) address).getAddress());
+                    } else
+                        sb.append(address.toString());
+                }
+        return sb.toString();
+    }
+
+    // Every word is matched as a prefix, quoted so that user input cannot form query syntax
+    static String getMatch(String search) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : search.split("\\s+")) {
+            word = word.replace("\"", "");
+            if (word.isEmpty())
+                continue;
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append('"').append(word).append("*\"");
+        }
+        return sb.toString();
+    }
+
+    // Same columns as the paged message queries of DaoMessage, one page of the results
+    static SupportSQLiteQuery getQuery(long folder, String search, int limit, int offset) {
+        String match = getMatch(search);
+        Log.i(Helper.TAG, "Search index folder=" + folder + " match=" + match + " limit=" + limit + " offset=" + offset);
+        return new SimpleSQLiteQuery(
+                "SELECT message.*, account.name AS accountName, folder.name as folderName, folder.type as folderType" +
+                        ", 1 AS count" +
+                        ", CASE WHEN message.ui_seen THEN 0 ELSE 1 END AS unseen" +
+                        " FROM `" + TABLE_NAME + "`" +
+                        " JOIN message ON message.id = `" + TABLE_NAME + "`.docid" +
+                        " LEFT JOIN account ON account.id = message.account" +
+                        " JOIN folder ON folder.id = message.folder" +
+                        " WHERE `" + TABLE_NAME + "` MATCH ?" +
+                        " AND (message.folder = ? OR ? < 0)" +
+                        " AND NOT message.ui_hide" +
+                        " ORDER BY message.received DESC" +
+                        " LIMIT ? OFFSET ?",
+                new Object[]{match, folder, folder, limit, offset});
+    }
+}
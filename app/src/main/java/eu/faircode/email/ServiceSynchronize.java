@@ -63,7 +63,6 @@ import java.net.SocketTimeoutException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -109,6 +108,7 @@ import androidx.core.content.ContextCompat;
 import androidx.lifecycle.LifecycleService;
 import androidx.lifecycle.Observer;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.sqlite.db.SupportSQLiteStatement;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 
@@ -123,6 +123,8 @@ public class ServiceSynchronize extends LifecycleService {
     private static final int CONNECT_BACKOFF_MAX = 1024; // seconds (1024 sec ~ 17 min)
     private static final long STORE_NOOP_INTERVAL = 9 * 60 * 1000L; // ms
     private static final int ATTACHMENT_BUFFER_SIZE = 8192; // bytes
+    private static final int SYNC_BATCH_SIZE = 50; // messages
+    private static final int SYNC_DELETE_BATCH_SIZE = 500; // uids, SQLite allows at most 999 variables
 
     static final String ACTION_SYNCHRONIZE_FOLDER = BuildConfig.APPLICATION_ID + ".SYNCHRONIZE_FOLDER";
     static final String ACTION_PROCESS_OPERATIONS = BuildConfig.APPLICATION_ID + ".PROCESS_OPERATIONS";
@@ -465,8 +467,7 @@ public class ServiceSynchronize extends LifecycleService {
 
                 // Initiate connection
                 Log.i(Helper.TAG, account.name + " connect");
-                for (EntityFolder folder : db.folder().getFolders(account.id))
-                    db.folder().setFolderState(folder.id, null);
+                db.folder().setFolderStates(account.id, null);
                 db.account().setAccountState(account.id, "connecting");
                 istore.connect(account.host, account.port, account.user, account.password);
                 boolean hasIdle = istore.hasCapability("IDLE");
@@ -508,12 +509,14 @@ public class ServiceSynchronize extends LifecycleService {
                                         synchronized (lock) {
                                             try {
                                                 Log.i(Helper.TAG, folder.name + " messages added");
+                                                SyncBatch batch = new SyncBatch();
                                                 for (Message imessage : e.getMessages())
                                                     try {
-                                                        synchronizeMessage(folder, ifolder, (IMAPMessage) imessage);
+                                                        synchronizeMessage(folder, ifolder, (IMAPMessage) imessage, batch);
                                                     } catch (MessageRemovedException ex) {
                                                         Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
                                                     }
+                                                applyBatch(folder, batch);
                                             } catch (Throwable ex) {
                                                 Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
                                                 reportError(account.name, folder.name, ex);
@@ -570,7 +573,9 @@ public class ServiceSynchronize extends LifecycleService {
                                             try {
                                                 try {
                                                     Log.i(Helper.TAG, folder.name + " message changed");
-                                                    synchronizeMessage(folder, ifolder, (IMAPMessage) e.getMessage());
+                                                    SyncBatch batch = new SyncBatch();
+                                                    synchronizeMessage(folder, ifolder, (IMAPMessage) e.getMessage(), batch);
+                                                    applyBatch(folder, batch);
                                                 } catch (MessageRemovedException ex) {
                                                     Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
                                                 }
@@ -1179,21 +1184,13 @@ public class ServiceSynchronize extends LifecycleService {
     private void synchronizeMessages(EntityAccount account, EntityFolder folder, IMAPFolder ifolder, ServiceState state) throws MessagingException, IOException {
         DB db = DB.getInstance(this);
         try {
+            db.beginBulk();
             Log.v(Helper.TAG, folder.name + " start sync after=" + folder.after);
 
             db.folder().setFolderState(folder.id, "syncing");
 
             // Get reference times
-            Calendar cal = Calendar.getInstance();
-            cal.add(Calendar.DAY_OF_MONTH, -folder.after);
-            cal.set(Calendar.HOUR_OF_DAY, 0);
-            cal.set(Calendar.MINUTE, 0);
-            cal.set(Calendar.SECOND, 0);
-            cal.set(Calendar.MILLISECOND, 0);
-
-            long ago = cal.getTimeInMillis();
-            if (ago < 0)
-                ago = 0;
+            long ago = folder.getSyncTime();
 
             Log.i(Helper.TAG, folder.name + " ago=" + new Date(ago));
 
@@ -1237,9 +1234,10 @@ public class ServiceSynchronize extends LifecycleService {
 
             // Delete local messages not at remote
             Log.i(Helper.TAG, folder.name + " delete=" + uids.size());
-            for (Long uid : uids) {
-                int count = db.message().deleteMessage(folder.id, uid);
-                Log.i(Helper.TAG, folder.name + " delete local uid=" + uid + " count=" + count);
+            for (int i = 0; i < uids.size(); i += SYNC_DELETE_BATCH_SIZE) {
+                List<Long> delete = uids.subList(i, Math.min(i + SYNC_DELETE_BATCH_SIZE, uids.size()));
+                int count = db.message().deleteMessages(folder.id, delete);
+                Log.i(Helper.TAG, folder.name + " delete local uids=" + delete.size() + " count=" + count);
             }
 
             // Add/update local messages
@@ -1247,9 +1245,10 @@ public class ServiceSynchronize extends LifecycleService {
             int updated = 0;
             int unchanged = 0;
             Log.i(Helper.TAG, folder.name + " add=" + imessages.length);
-            for (int i = imessages.length - 1; i >= 0; i--)
+            SyncBatch batch = new SyncBatch();
+            for (int i = imessages.length - 1; i >= 0; i--) {
                 try {
-                    int status = synchronizeMessage(folder, ifolder, (IMAPMessage) imessages[i]);
+                    int status = synchronizeMessage(folder, ifolder, (IMAPMessage) imessages[i], batch);
                     if (status > 0)
                         added++;
                     else if (status < 0)
@@ -1263,6 +1262,13 @@ public class ServiceSynchronize extends LifecycleService {
                     Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
                 }
 
+                if (batch.size() >= SYNC_BATCH_SIZE) {
+                    applyBatch(folder, batch);
+                    batch = new SyncBatch();
+                }
+            }
+            applyBatch(folder, batch);
+
             // Cleanup files
             File[] messages = new File(getFilesDir(), "messages").listFiles();
             if (messages != null)
@@ -1284,140 +1290,230 @@ public class ServiceSynchronize extends LifecycleService {
                             file.delete();
                         }
                     }
+            ImageHelper.cleanup(this);
+            SearchIndex.backfill(this); // in the background
 
             Log.w(Helper.TAG, folder.name + " statistics added=" + added + " updated=" + updated + " unchanged=" + unchanged);
         } finally {
             Log.v(Helper.TAG, folder.name + " end sync");
+            db.endBulk();
             db.folder().setFolderState(folder.id, ifolder.isOpen() ? "connected" : "disconnected");
         }
     }
 
-    private int synchronizeMessage(EntityFolder folder, IMAPFolder ifolder, IMAPMessage imessage) throws MessagingException, IOException {
-        long uid;
-        try {
-            FetchProfile fp = new FetchProfile();
-            fp.add(UIDFolder.FetchProfileItem.UID);
-            fp.add(IMAPFolder.FetchProfileItem.FLAGS);
-            ifolder.fetch(new Message[]{imessage}, fp);
+    // Fetches the message and determines the required database changes, without changing the database
+    private int synchronizeMessage(EntityFolder folder, IMAPFolder ifolder, IMAPMessage imessage, SyncBatch batch) throws MessagingException, IOException {
+        FetchProfile fp = new FetchProfile();
+        fp.add(UIDFolder.FetchProfileItem.UID);
+        fp.add(IMAPFolder.FetchProfileItem.FLAGS);
+        ifolder.fetch(new Message[]{imessage}, fp);
 
-            uid = ifolder.getUID(imessage);
-            //Log.v(Helper.TAG, folder.name + " start sync uid=" + uid);
-
-            if (imessage.isExpunged()) {
-                Log.i(Helper.TAG, folder.name + " expunged uid=" + uid);
-                return 0;
-            }
-            if (imessage.isSet(Flags.Flag.DELETED)) {
-                Log.i(Helper.TAG, folder.name + " deleted uid=" + uid);
-                return 0;
-            }
-
-            MessageHelper helper = new MessageHelper(imessage);
-            boolean seen = helper.getSeen();
-
-            DB db = DB.getInstance(this);
-            try {
-                int result = 0;
+        long uid = ifolder.getUID(imessage);
+        //Log.v(Helper.TAG, folder.name + " start sync uid=" + uid);
 
-                db.beginTransaction();
+        if (imessage.isExpunged()) {
+            Log.i(Helper.TAG, folder.name + " expunged uid=" + uid);
+            return 0;
+        }
+        if (imessage.isSet(Flags.Flag.DELETED)) {
+            Log.i(Helper.TAG, folder.name + " deleted uid=" + uid);
+            return 0;
+        }
 
-                // Find message by uid (fast, no headers required)
-                EntityMessage message = db.message().getMessageByUid(folder.id, uid);
-
-                // Find message by Message-ID (slow, headers required)
-                // - messages in inbox have same id as message sent to self
-                // - messages in archive have same id as original
-                if (message == null) {
-                    // Will fetch headers within database transaction
-                    String msgid = helper.getMessageID();
-                    for (EntityMessage dup : db.message().getMessageByMsgId(folder.account, msgid)) {
-                        EntityFolder dfolder = db.folder().getFolder(dup.folder);
-                        boolean outbox = EntityFolder.OUTBOX.equals(dfolder.type);
-                        Log.i(Helper.TAG, folder.name + " found as id=" + dup.id +
-                                " folder=" + dfolder.type + ":" + dup.folder + "/" + folder.type + ":" + folder.id);
-
-                        if (dup.folder.equals(folder.id) || outbox) {
-                            Log.i(Helper.TAG, folder.name + " found as id=" + dup.id + " uid=" + dup.uid + " msgid=" + msgid);
-                            dup.folder = folder.id;
-                            dup.uid = uid;
-                            if (TextUtils.isEmpty(dup.thread)) // outbox: only now the uid is known
-                                dup.thread = helper.getThreadId(uid);
-                            db.message().updateMessage(dup);
-                            message = dup;
-                            result = -1;
-                        }
-                    }
-                }
+        MessageHelper helper = new MessageHelper(imessage);
+        boolean seen = helper.getSeen();
 
-                if (message != null) {
-                    if (message.seen != seen || message.seen != message.ui_seen) {
-                        message.seen = seen;
-                        message.ui_seen = seen;
-                        db.message().updateMessage(message);
-                        Log.i(Helper.TAG, folder.name + " updated id=" + message.id + " uid=" + message.uid + " seen=" + seen);
+        DB db = DB.getInstance(this);
+        int result = 0;
+
+        // Find message by uid (fast, no headers required)
+        EntityMessage message = db.message().getMessageByUid(folder.id, uid);
+
+        // Find message by Message-ID (slow, headers required)
+        // - messages in inbox have same id as message sent to self
+        // - messages in archive have same id as original
+        if (message == null) {
+            String msgid = helper.getMessageID();
+            Long thread = (TextUtils.isEmpty(msgid) ? null
+                    : ThreadIndex.getThread(db.getOpenHelper().getReadableDatabase(), folder.account, msgid));
+            if (thread != null)
+                for (EntityMessage dup : db.message().getMessageByMsgId(folder.account, thread, msgid)) {
+                    EntityFolder dfolder = db.folder().getFolder(dup.folder);
+                    boolean outbox = EntityFolder.OUTBOX.equals(dfolder.type);
+                    Log.i(Helper.TAG, folder.name + " found as id=" + dup.id +
+                            " folder=" + dfolder.type + ":" + dup.folder + "/" + folder.type + ":" + folder.id);
+
+                    if (dup.folder.equals(folder.id) || outbox) {
+                        Log.i(Helper.TAG, folder.name + " found as id=" + dup.id + " uid=" + dup.uid + " msgid=" + msgid);
+                        dup.folder = folder.id;
+                        dup.uid = uid;
+                        batch.move(dup);
+                        message = dup;
                         result = -1;
                     }
                 }
+        }
 
-                if (message == null) {
-                    // Will fetch message within database transaction
-                    FetchProfile fp1 = new FetchProfile();
-                    fp1.add(FetchProfile.Item.ENVELOPE);
-                    fp1.add(FetchProfile.Item.CONTENT_INFO);
-                    fp1.add(IMAPFolder.FetchProfileItem.HEADERS);
-                    fp1.add(IMAPFolder.FetchProfileItem.MESSAGE);
-                    ifolder.fetch(new Message[]{imessage}, fp1);
-
-                    message = new EntityMessage();
-                    message.account = folder.account;
-                    message.folder = folder.id;
-                    message.uid = uid;
-
-                    if (!EntityFolder.ARCHIVE.equals(folder.type)) {
-                        message.msgid = helper.getMessageID();
-                        if (TextUtils.isEmpty(message.msgid))
-                            Log.w(Helper.TAG, "No Message-ID id=" + message.id + " uid=" + message.uid);
-                    }
+        if (message != null) {
+            if (message.seen != seen || message.seen != message.ui_seen) {
+                message.seen = seen;
+                message.ui_seen = seen;
+                batch.seen(message);
+                Log.i(Helper.TAG, folder.name + " updated id=" + message.id + " uid=" + message.uid + " seen=" + seen);
+                result = -1;
+            }
+            return result;
+        }
 
-                    message.references = TextUtils.join(" ", helper.getReferences());
-                    message.inreplyto = helper.getInReplyTo();
-                    message.thread = helper.getThreadId(uid);
-                    message.from = helper.getFrom();
-                    message.to = helper.getTo();
-                    message.cc = helper.getCc();
-                    message.bcc = helper.getBcc();
-                    message.reply = helper.getReply();
-                    message.subject = imessage.getSubject();
-                    message.received = imessage.getReceivedDate().getTime();
-                    message.sent = (imessage.getSentDate() == null ? null : imessage.getSentDate().getTime());
-                    message.seen = seen;
-                    message.ui_seen = seen;
-                    message.ui_hide = false;
-
-                    message.id = db.message().insertMessage(message);
-                    message.write(this, helper.getHtml());
-                    Log.i(Helper.TAG, folder.name + " added id=" + message.id + " uid=" + message.uid);
-
-                    int sequence = 0;
-                    for (EntityAttachment attachment : helper.getAttachments()) {
-                        sequence++;
-                        Log.i(Helper.TAG, "attachment seq=" + sequence +
-                                " name=" + attachment.name + " type=" + attachment.type);
-                        attachment.message = message.id;
-                        attachment.sequence = sequence;
-                        attachment.id = db.attachment().insertAttachment(attachment);
-                    }
+        // The message itself is not fetched: the content info includes the body structure,
+        // so that only the selected text part is downloaded (BODY.PEEK[section]) and attachments are listed from the structure
+        FetchProfile fp1 = new FetchProfile();
+        fp1.add(FetchProfile.Item.ENVELOPE);
+        fp1.add(FetchProfile.Item.CONTENT_INFO);
+        fp1.add(IMAPFolder.FetchProfileItem.HEADERS);
+        ifolder.fetch(new Message[]{imessage}, fp1);
+
+        message = new EntityMessage();
+        message.account = folder.account;
+        message.folder = folder.id;
+        message.uid = uid;
+
+        // Archived messages are threaded by Message-ID too
+        String msgid = helper.getMessageID();
+        if (!EntityFolder.ARCHIVE.equals(folder.type)) {
+            message.msgid = msgid;
+            if (TextUtils.isEmpty(message.msgid))
+                Log.w(Helper.TAG, "No Message-ID id=" + message.id + " uid=" + message.uid);
+        }
 
-                    result = 1;
+        message.references = TextUtils.join(" ", helper.getReferences());
+        message.inreplyto = helper.getInReplyTo();
+        message.from = helper.getFrom();
+        message.to = helper.getTo();
+        message.cc = helper.getCc();
+        message.bcc = helper.getBcc();
+        message.reply = helper.getReply();
+        message.subject = imessage.getSubject();
+        message.received = imessage.getReceivedDate().getTime();
+        message.sent = (imessage.getSentDate() == null ? null : imessage.getSentDate().getTime());
+        message.seen = seen;
+        message.ui_seen = seen;
+        message.ui_hide = false;
+
+        String html = helper.getHtml();
+        String text = HtmlHelper.getText(html);
+        message.sender = MessageHelper.getSender(folder.type, message.from, message.to);
+        message.preview = HtmlHelper.getPreview(text);
+
+        batch.add(message, msgid, html, text, helper.getAttachments());
+
+        return 1;
+    }
+
+    // Applies the changes of a batch of messages in one transaction
+    private void applyBatch(EntityFolder folder, SyncBatch batch) {
+        if (batch.size() == 0)
+            return;
+
+        long start = SystemClock.elapsedRealtime();
+        DB db = DB.getInstance(this);
+        try {
+            db.beginTransaction();
+
+            // Only the columns changed by synchronizing are written, other columns can have been changed in the meantime
+            for (EntityMessage message : batch.moved)
+                if (db.message().setMessageFolderUid(message.id, message.folder, message.uid) == 0)
+                    Log.w(Helper.TAG, folder.name + " could not move id=" + message.id + " uid=" + message.uid);
+            for (EntityMessage message : batch.seen)
+                db.message().setMessageSynchronizedSeen(message.id, message.seen);
+
+            // Threads are assigned before inserting, so the thread summaries are built once
+            ThreadIndex threads = new ThreadIndex(db.getOpenHelper().getWritableDatabase());
+            for (int m = 0; m < batch.added.size(); m++) {
+                EntityMessage message = batch.added.get(m);
+                message.thread = threads.thread(message.account, batch.msgids.get(m),
+                        ThreadIndex.getReferences(message.references, message.inreplyto));
+            }
+            for (EntityMessage message : batch.added)
+                message.thread = threads.resolve(message.thread);
+
+            // Messages added in the meantime, for example by a listener, are ignored
+            List<Long> ids = db.message().insertMessages(batch.added);
+
+            SupportSQLiteStatement index = SearchIndex.compileInsert(db.getOpenHelper().getWritableDatabase());
+
+            List<EntityAttachment> attachments = new ArrayList<>();
+            for (int m = 0; m < batch.added.size(); m++) {
+                EntityMessage message = batch.added.get(m);
+                message.id = ids.get(m);
+                if (message.id < 0) {
+                    Log.i(Helper.TAG, folder.name + " exists uid=" + message.uid);
+                    continue;
                 }
 
-                db.setTransactionSuccessful();
-                return result;
-            } finally {
-                db.endTransaction();
+                // A message without body is removed again, so that it is added again on the next synchronization
+                try {
+                    message.write(this, batch.bodies.get(m));
+                } catch (IOException ex) {
+                    Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                    db.message().deleteMessage(message.id);
+                    continue;
+                }
+                SearchIndex.insert(index, message, batch.texts.get(m));
+                Log.i(Helper.TAG, folder.name + " added id=" + message.id + " uid=" + message.uid);
+
+                int sequence = 0;
+                for (EntityAttachment attachment : batch.attachments.get(m)) {
+                    sequence++;
+                    Log.i(Helper.TAG, "attachment seq=" + sequence +
+                            " name=" + attachment.name + " type=" + attachment.type);
+                    attachment.message = message.id;
+                    attachment.sequence = sequence;
+                    attachments.add(attachment);
+                }
             }
+            index.close();
+
+            ids = db.attachment().insertAttachments(attachments);
+            for (int a = 0; a < attachments.size(); a++)
+                attachments.get(a).id = ids.get(a);
+
+            db.setTransactionSuccessful();
         } finally {
-            //Log.v(Helper.TAG, folder.name + " end sync uid=" + uid);
+            db.endTransaction();
+        }
+
+        Log.i(Helper.TAG, folder.name + " batch moved=" + batch.moved.size() + " seen=" + batch.seen.size() + " added=" + batch.added.size() +
+                " " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    private static class SyncBatch {
+        private List<EntityMessage> moved = new ArrayList<>();
+        private List<EntityMessage> seen = new ArrayList<>();
+        private List<EntityMessage> added = new ArrayList<>();
+        private List<String> msgids = new ArrayList<>();
+        private List<String> bodies = new ArrayList<>();
+        private List<String> texts = new ArrayList<>();
+        private List<List<EntityAttachment>> attachments = new ArrayList<>();
+
+        void move(EntityMessage message) {
+            moved.add(message);
+        }
+
+        void seen(EntityMessage message) {
+            seen.add(message);
+        }
+
+        void add(EntityMessage message, String msgid, String body, String text, List<EntityAttachment> attachments) {
+            this.added.add(message);
+            this.msgids.add(msgid);
+            this.bodies.add(body);
+            this.texts.add(text);
+            this.attachments.add(attachments);
+        }
+
+        int size() {
+            return moved.size() + seen.size() + added.size();
         }
     }
 
@@ -22,9 +22,17 @@ package eu.faircode.email;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.fragment.app.Fragment;
 import androidx.lifecycle.Lifecycle;
@@ -39,22 +47,39 @@ import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 // This simple task is simple to use, but it is also simple to cause bugs that can easily lead to crashes
 // Make sure to not access any member in any outer scope from onLoad
 // Results will not be delivered to destroyed fragments
+// Tasks in the read lane will not be run for destroyed fragments
 //
 
 public abstract class SimpleTask<T> implements LifecycleObserver {
+    private int lane;
     private LifecycleOwner owner;
     private boolean paused = false;
     private Bundle args = null;
     private Result stored = null;
+    private Future<?> future = null;
+
+    // Reads blocking the user interface, run concurrently, cancelled when the owner is destroyed
+    static final int LANE_READ = 0;
+    // Database writes and anything else changing a draft, run in order, never cancelled
+    static final int LANE_WRITE = 1;
+    // Bulk file/network I/O without ordering dependencies, run concurrently, never cancelled
+    static final int LANE_IO = 2;
 
-    private static HandlerThread handlerThread;
-    private static Handler handler;
+    private static final int READ_THREADS = 2;
+    private static final int IO_THREADS = 2;
 
-    static {
-        handlerThread = new HandlerThread("SimpleTask");
-        handlerThread.start();
-        handlerThread.setPriority(THREAD_PRIORITY_BACKGROUND);
-        handler = new Handler(handlerThread.getLooper());
+    private static final ExecutorService[] executors = new ExecutorService[]{
+            Executors.newFixedThreadPool(READ_THREADS, new PriorityThreadFactory("SimpleTask-read")),
+            Executors.newSingleThreadExecutor(new PriorityThreadFactory("SimpleTask-write")),
+            Executors.newFixedThreadPool(IO_THREADS, new PriorityThreadFactory("SimpleTask-io"))
+    };
+
+    public SimpleTask() {
+        this(LANE_WRITE);
+    }
+
+    public SimpleTask(int lane) {
+        this.lane = lane;
     }
 
     public void load(Context context, LifecycleOwner owner, Bundle args) {
@@ -110,6 +135,9 @@ public abstract class SimpleTask<T> implements LifecycleObserver {
         Log.i(Helper.TAG, "Destroy task " + this);
         owner.getLifecycle().removeObserver(this);
         owner = null;
+        if (lane == LANE_READ && future != null)
+            future.cancel(false);
+        future = null;
         paused = true;
         args = null;
         stored = null;
@@ -120,17 +148,23 @@ public abstract class SimpleTask<T> implements LifecycleObserver {
         owner.getLifecycle().addObserver(this);
 
         // Run in background thread
-        handler.post(new Runnable() {
+        final long queued = SystemClock.elapsedRealtime();
+        future = executors[lane].submit(new Runnable() {
             @Override
             public void run() {
                 final Result result = new Result();
 
+                long start = SystemClock.elapsedRealtime();
                 try {
                     result.data = onLoad(context, args);
                 } catch (Throwable ex) {
                     Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
                     result.ex = ex;
                 }
+                long end = SystemClock.elapsedRealtime();
+
+                Log.i(Helper.TAG, "Task " + SimpleTask.this.getClass().getName() + " lane=" + lane +
+                        " wait=" + (start - queued) + " ms run=" + (end - start) + " ms");
 
                 // Run on main thread
                 new Handler(context.getMainLooper()).post(new Runnable() {
@@ -178,4 +212,24 @@ public abstract class SimpleTask<T> implements LifecycleObserver {
         Throwable ex;
         Object data;
     }
+
+    private static class PriorityThreadFactory implements ThreadFactory {
+        private String name;
+        private AtomicInteger count = new AtomicInteger();
+
+        PriorityThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, name + "-" + count.incrementAndGet());
+        }
+    }
 }
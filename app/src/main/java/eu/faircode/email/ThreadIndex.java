@@ -0,0 +1,192 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+// Index of the Message-IDs of an account with the thread of each
+// Message-IDs which are only referenced are indexed too, so messages arriving in any order end up in the same thread
+// A thread is numbered by its first index row, and threads linked by a message are merged into the lowest numbered one
+// Message-IDs are looked up by a 64 bit hash, so the index is on integers instead of on long strings
+// The Message-IDs of a thread are removed when its last message is deleted, so the index does not grow without bounds
+// The index is used in migrations too, so it is created and queried with plain SQL, like the search index
+
+public class ThreadIndex {
+    static final String TABLE_NAME = "reference";
+
+    private static final int MAX_REFERENCES = 250; // SQLite allows 999 parameters
+
+    private SupportSQLiteDatabase db;
+    private Map<Long, Long> merged = new HashMap<>();
+
+    static void create(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS `" + TABLE_NAME + "`" +
+                " (`id` INTEGER PRIMARY KEY AUTOINCREMENT, `account` INTEGER NOT NULL, `hash` INTEGER NOT NULL, `msgid` TEXT NOT NULL, `thread` INTEGER NOT NULL)");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_reference_account_hash` ON `" + TABLE_NAME + "` (`account`, `hash`)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS `index_reference_account_thread` ON `" + TABLE_NAME + "` (`account`, `thread`)");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `reference_delete` AFTER DELETE ON `account`" +
+                " BEGIN DELETE FROM `" + TABLE_NAME + "` WHERE account = OLD.id; END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS `reference_prune` AFTER DELETE ON `message`" +
+                " WHEN OLD.thread IS NOT NULL" +
+                " AND NOT EXISTS (SELECT id FROM `message` WHERE account = OLD.account AND thread = OLD.thread)" +
+                " BEGIN DELETE FROM `" + TABLE_NAME + "` WHERE account = OLD.account AND thread = OLD.thread; END");
+    }
+
+    ThreadIndex(SupportSQLiteDatabase db) {
+        this.db = db;
+    }
+
+    // 64 bit FNV-1a, see http://www.isthe.com/chongo/tech/comp/fnv/
+    static long hash(String msgid) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < msgid.length(); i++) {
+            hash ^= msgid.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Every stored message with a Message-ID is in the index, so a message with a Message-ID can only be in its thread
+    static Long getThread(SupportSQLiteDatabase db, long account, String msgid) {
+        Cursor cursor = null;
+        try {
+            cursor = db.query("SELECT msgid, thread FROM `" + TABLE_NAME + "` WHERE account = ? AND hash = ?",
+                    new Object[]{account, hash(msgid)});
+            if (cursor.moveToNext() && msgid.equals(cursor.getString(0)))
+                return cursor.getLong(1);
+            else
+                return null;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    // References, oldest first, followed by the In-Reply-To Message-ID if it was not referenced
+    static List<String> getReferences(String references, String inreplyto) {
+        List<String> result = new ArrayList<>();
+        if (references != null)
+            for (String ref : references.split("\\s+"))
+                if (!ref.isEmpty() && !result.contains(ref))
+                    result.add(ref);
+        // In-Reply-To can contain other text than a Message-ID
+        if (inreplyto != null)
+            for (String id : inreplyto.split("\\s+"))
+                if (id.startsWith("<")) {
+                    if (!result.contains(id))
+                        result.add(id);
+                    break;
+                }
+        return result;
+    }
+
+    // Links the message to its references and returns its thread, or null when the message has no Message-IDs at all
+    // Messages already stored in a merged thread are moved to the resulting thread
+    Long thread(long account, String msgid, List<String> references) {
+        List<String> ids = new ArrayList<>(references);
+        if (!TextUtils.isEmpty(msgid)) {
+            ids.remove(msgid); // a message can reference itself
+            ids.add(msgid);
+        }
+        if (ids.size() > MAX_REFERENCES)
+            ids = ids.subList(ids.size() - MAX_REFERENCES, ids.size());
+        if (ids.size() == 0)
+            return null;
+
+        List<String> rows = new ArrayList<>();
+        List<Long> threads = new ArrayList<>();
+        Long thread = null;
+
+        StringBuilder sb = new StringBuilder();
+        Object[] args = new Object[ids.size() + 1];
+        args[0] = account;
+        for (int i = 0; i < ids.size(); i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+            args[i + 1] = hash(ids.get(i));
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = db.query("SELECT msgid, thread FROM `" + TABLE_NAME + "`" +
+                    " WHERE account = ? AND hash IN (" + sb + ")", args);
+            while (cursor.moveToNext()) {
+                String id = cursor.getString(0);
+                if (!ids.contains(id))
+                    continue; // hash collision
+                long t = cursor.getLong(1);
+                rows.add(id);
+                if (!threads.contains(t))
+                    threads.add(t);
+                if (thread == null || t < thread)
+                    thread = t;
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        // Index the Message-IDs not indexed yet in the thread
+        for (String id : ids)
+            if (!rows.contains(id)) {
+                ContentValues cv = new ContentValues();
+                cv.put("account", account);
+                cv.put("hash", hash(id));
+                cv.put("msgid", id);
+                cv.put("thread", thread == null ? 0 : thread);
+                long row = db.insert(TABLE_NAME, SQLiteDatabase.CONFLICT_IGNORE, cv);
+                if (row < 0)
+                    Log.w(Helper.TAG, "Hash collision msgid=" + id);
+                else if (thread == null) {
+                    thread = row;
+                    db.execSQL("UPDATE `" + TABLE_NAME + "` SET thread = ? WHERE id = ?", new Object[]{thread, row});
+                }
+            }
+
+        for (Long other : threads)
+            if (!other.equals(thread)) {
+                Log.i(Helper.TAG, "Merging thread " + other + " into " + thread);
+                db.execSQL("UPDATE `" + TABLE_NAME + "` SET thread = ? WHERE account = ? AND thread = ?",
+                        new Object[]{thread, account, other});
+                db.execSQL("UPDATE `message` SET thread = ? WHERE account = ? AND thread = ?",
+                        new Object[]{thread, account, other});
+                merged.put(other, thread);
+            }
+
+        return thread;
+    }
+
+    // Threads returned earlier might have been merged since, which matters for messages not stored yet
+    Long resolve(Long thread) {
+        while (thread != null && merged.containsKey(thread))
+            thread = merged.get(thread);
+        return thread;
+    }
+}
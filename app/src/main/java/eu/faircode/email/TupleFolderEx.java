@@ -21,17 +21,13 @@ package eu.faircode.email;
 
 public class TupleFolderEx extends EntityFolder {
     public String accountName;
-    public int messages;
-    public int unseen;
 
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof TupleFolderEx) {
             TupleFolderEx other = (TupleFolderEx) obj;
             return (super.equals(obj) &&
-                    (this.accountName == null ? other.accountName == null : accountName.equals(other.accountName)) &&
-                    this.messages == other.messages &&
-                    this.unseen == other.unseen);
+                    (this.accountName == null ? other.accountName == null : accountName.equals(other.accountName)));
         } else
             return false;
     }
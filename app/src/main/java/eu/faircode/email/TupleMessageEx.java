@@ -25,7 +25,6 @@ public class TupleMessageEx extends EntityMessage {
     public String folderType;
     public int count;
     public int unseen;
-    public int attachments;
 
     @Override
     public boolean equals(Object obj) {
@@ -36,8 +35,7 @@ public class TupleMessageEx extends EntityMessage {
                     this.folderName.equals(other.folderName) &&
                     this.folderType.equals(other.folderType) &&
                     this.count == other.count &&
-                    this.unseen == other.unseen &&
-                    this.attachments == other.attachments);
+                    this.unseen == other.unseen);
         }
         return super.equals(obj);
     }